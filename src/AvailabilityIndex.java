@@ -0,0 +1,127 @@
+package src;
+
+import java.util.Arrays;
+import java.util.Random;
+
+// Counts how many neighbors hold each piece and keeps the pieces we can still request in one bitmap per copy count.
+// The rarest piece a neighbor has is found by ANDing its bitfield with those bitmaps a word at a time, lowest count
+// first, so a pick costs a word scan per non-empty count and nothing is boxed. Ties are broken by starting the
+// scan at a random piece. Not thread safe; Peer only uses it while holding its requestLock.
+public class AvailabilityIndex {
+
+    private final int totalPieces;
+    private final int words;
+    private final int[] copies;
+    private long[][] levels; // levels[c] holds the candidates exactly c neighbors have, allocated on first use
+    private int[] levelSizes; // Candidates in each level, so empty levels are skipped
+    private final Random random;
+
+    public AvailabilityIndex(int totalPieces, ConcurrentBitSet have) {
+        this.totalPieces = totalPieces;
+        this.words = (totalPieces + 63) >>> 6;
+        this.copies = new int[totalPieces];
+        this.levels = new long[4][];
+        this.levelSizes = new int[4];
+        this.random = new Random();
+        for (int i = 0; i < totalPieces; i++) {
+            if (!have.get(i)) {
+                restore(i);
+            }
+        }
+    }
+
+    private long[] level(int count) {
+        if (count >= levels.length) {
+            int length = Math.max(count + 1, levels.length * 2);
+            levels = Arrays.copyOf(levels, length);
+            levelSizes = Arrays.copyOf(levelSizes, length);
+        }
+        if (levels[count] == null) {
+            levels[count] = new long[words];
+        }
+        return levels[count];
+    }
+
+    private boolean listed(int piece) {
+        int count = copies[piece];
+        return count < levels.length && levels[count] != null && (levels[count][piece >>> 6] & (1L << piece)) != 0;
+    }
+
+    private void list(int piece) {
+        level(copies[piece])[piece >>> 6] |= 1L << piece;
+        levelSizes[copies[piece]]++;
+    }
+
+    private void unlist(int piece) {
+        levels[copies[piece]][piece >>> 6] &= ~(1L << piece);
+        levelSizes[copies[piece]]--;
+    }
+
+    // A neighbor announced the piece with HAVE or BITFIELD. Indexes outside the file are ignored
+    public void addCopy(int piece) {
+        if (piece < 0 || piece >= totalPieces) {
+            return;
+        }
+        boolean wasListed = listed(piece);
+        if (wasListed) {
+            unlist(piece);
+        }
+        copies[piece]++;
+        if (wasListed) {
+            list(piece);
+        }
+    }
+
+    // The piece was requested or downloaded, so it is no longer a candidate
+    public void remove(int piece) {
+        if (listed(piece)) {
+            unlist(piece);
+        }
+    }
+
+    // A request for the piece was released without the piece arriving
+    public void restore(int piece) {
+        if (!listed(piece)) {
+            list(piece);
+        }
+    }
+
+    // Returns the rarest candidate the neighbor holds, or -1 if it has none
+    public int rarest(ConcurrentBitSet neighborPieces) {
+        if (words == 0) {
+            return -1;
+        }
+        int start = random.nextInt(totalPieces);
+        for (int count = 0; count < levels.length; count++) {
+            if (levelSizes[count] > 0) {
+                int piece = firstShared(levels[count], neighborPieces, start);
+                if (piece >= 0) {
+                    return piece;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // First piece from start on, wrapping around, that is set in both level and the neighbor's pieces
+    private int firstShared(long[] level, ConcurrentBitSet neighborPieces, int start) {
+        int first = start >>> 6;
+        for (int i = 0; i <= words; i++) {
+            int w = (first + i) % words;
+            long shared = level[w] & neighborPieces.word(w);
+            if (i == 0) {
+                shared &= -1L << start; // Only pieces from start on; the rest of this word is checked last
+            } else if (i == words) {
+                shared &= ~(-1L << start);
+            }
+            if (shared != 0) {
+                return (w << 6) + Long.numberOfTrailingZeros(shared);
+            }
+        }
+        return -1;
+    }
+
+    public int copies(int piece) {
+        return copies[piece];
+    }
+}
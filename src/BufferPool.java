@@ -0,0 +1,69 @@
+package src;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+
+// A bounded set of reusable direct buffers of one size. When every buffer is in use, acquire hands out a
+// temporary heap buffer instead of waiting, and counts the pool as exhausted. Buffers still out at the end are leaks
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int capacity;
+    private final ArrayDeque<ByteBuffer> free;
+    private final IdentityHashMap<ByteBuffer, Boolean> inUse; // ByteBuffer.equals compares contents, so by identity
+    private int allocated; // Direct buffers created so far, at most capacity
+    private long acquired;
+    private long hits; // Acquisitions served by a buffer that had been released before
+    private long exhausted; // Acquisitions that got a temporary buffer because the pool was empty
+
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = Math.max(0, capacity);
+        this.free = new ArrayDeque<ByteBuffer>();
+        this.inUse = new IdentityHashMap<ByteBuffer, Boolean>();
+    }
+
+    // Returns a buffer with length bytes remaining. It goes back to the pool with release
+    public synchronized ByteBuffer acquire(int length) {
+        acquired++;
+        if (length > bufferSize) {
+            exhausted++;
+            return ByteBuffer.allocate(length);
+        }
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            hits++;
+        } else if (allocated < capacity) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            allocated++;
+        } else {
+            exhausted++;
+            return ByteBuffer.allocate(length);
+        }
+        inUse.put(buffer, Boolean.TRUE);
+        buffer.clear().limit(length);
+        return buffer;
+    }
+
+    // Returns a buffer from acquire to the pool. False for a temporary buffer, or one that was already released
+    public synchronized boolean release(ByteBuffer buffer) {
+        if (inUse.remove(buffer) == null) {
+            return false;
+        }
+        free.push(buffer); // Most recently used first, while it is still in cache
+        return true;
+    }
+
+    // Buffers acquired and not released
+    public synchronized int outstanding() {
+        return inUse.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long hitRate = acquired > 0 ? hits * 100 / acquired : 0;
+        return acquired + " acquired, " + hitRate + "% reused, " + exhausted + " exhausted, "
+                + allocated + "/" + capacity + " allocated, " + inUse.size() + " leaked";
+    }
+}
@@ -0,0 +1,117 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SplittableRandom;
+
+// Times the unchoke round's decision for many interested neighbors: the PreferredRanking step Peer.unchoke runs
+// outside the choke lock, reading every neighbor's rate meter and picking the fastest. What Peer then does under
+// the lock only touches the unchoked and preferred neighbors, a handful whatever the neighbor count. For comparison
+// it also times ranking the same neighbors with a full sort, as rounds used to.
+// Usage: java -cp bin src.ChokeRoundBenchmark [neighbors] [preferred] [rounds]
+public class ChokeRoundBenchmark {
+
+    static class Neighbor implements PreferredRanking.Candidate {
+        final int index;
+        final RateMeter downloaded;
+        final RateMeter uploaded;
+        long score;
+
+        Neighbor(int index) {
+            this.index = index;
+            this.downloaded = new RateMeter();
+            this.uploaded = new RateMeter();
+        }
+
+        public boolean isInterestedInUs() {
+            return true;
+        }
+
+        public RateMeter downloadMeter() {
+            return downloaded;
+        }
+
+        public RateMeter uploadMeter() {
+            return uploaded;
+        }
+
+        public int index() {
+            return index;
+        }
+    }
+
+    public static void main(String[] args) {
+        int neighborCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int preferred = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 2_000;
+        SplittableRandom random = new SplittableRandom(1);
+        ArrayList<Neighbor> neighbors = new ArrayList<Neighbor>();
+        for (int i = 0; i < neighborCount; i++) {
+            neighbors.add(new Neighbor(i));
+        }
+        PreferredRanking<Neighbor> ranking = new PreferredRanking<Neighbor>();
+        long[] rankTimes = new long[rounds];
+        long[] sortTimes = new long[rounds];
+        int[] previous = new int[preferred];
+        long changes = 0;
+
+        for (int round = 0; round < rounds * 2; round++) {
+            // Traffic between rounds: most neighbors send a little, a few send a lot, many send nothing
+            for (Neighbor n : neighbors) {
+                int roll = random.nextInt(100);
+                if (roll < 40) {
+                    n.downloaded.add(roll < 5 ? 1_000_000 + random.nextInt(1_000_000) : random.nextInt(16_384));
+                }
+            }
+
+            long now = System.nanoTime();
+            long start = System.nanoTime();
+            ranking.rank(neighbors, false, preferred, now);
+            long rank = System.nanoTime() - start;
+            int count = ranking.preferredCount();
+            for (int i = 0; i < count; i++) {
+                if (!ranking.isPreferred(neighbors.get(previous[i]))) {
+                    changes++;
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                previous[i] = ranking.preferred(i).index;
+            }
+
+            RateMeter.Reading at = RateMeter.at(now);
+            for (Neighbor n : neighbors) {
+                n.score = n.downloaded.rate(at);
+            }
+            start = System.nanoTime();
+            ArrayList<Neighbor> sorted = new ArrayList<Neighbor>(neighbors);
+            Collections.sort(sorted, (a, b) -> Long.compare(b.score, a.score));
+            long sort = System.nanoTime() - start;
+            if (sorted.get(0).score != ranking.preferred(0).score) {
+                throw new IllegalStateException("PreferredRanking and the sort disagree on the fastest neighbor");
+            }
+
+            if (round >= rounds) { // The first half warms up the JIT
+                rankTimes[round - rounds] = rank;
+                sortTimes[round - rounds] = sort;
+            }
+        }
+
+        System.out.println(neighborCount + " interested neighbors, " + preferred + " preferred, " + rounds
+                + " measured rounds, " + changes + " preferred neighbor changes");
+        System.out.println("Reading the rate meters and ranking with PreferredRanking: " + summary(rankTimes));
+        System.out.println("Full sort alone: " + summary(sortTimes));
+    }
+
+    private static String summary(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long t : sorted) {
+            total += t;
+        }
+        return String.format("mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us", total / 1e3 / sorted.length,
+                sorted[sorted.length / 2] / 1e3, sorted[(int) (sorted.length * 0.99)] / 1e3,
+                sorted[sorted.length - 1] / 1e3);
+    }
+}
@@ -0,0 +1,137 @@
+package src;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed-size bitmap whose bits can be read and changed from any thread without locking. Each change is atomic
+// and visible to every later read; reads spanning several bits see each word as it is at that moment
+public class ConcurrentBitSet {
+
+    private final AtomicLongArray words;
+    private final int size;
+
+    public ConcurrentBitSet(int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Bits outside the bitmap read as clear, so an index taken from a message can be checked as it is
+    public boolean get(int index) {
+        if (index < 0 || index >= size) {
+            return false;
+        }
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    // Returns true if this call changed the bit, so of several threads setting it only one sees true.
+    // Indexes outside the bitmap change nothing, so no bit past size is ever set
+    public boolean set(int index) {
+        if (index < 0 || index >= size) {
+            return false;
+        }
+        long bit = 1L << index;
+        return (words.getAndAccumulate(index >>> 6, bit, (w, b) -> w | b) & bit) == 0;
+    }
+
+    // Returns true if this call changed the bit
+    public boolean clear(int index) {
+        if (index < 0 || index >= size) {
+            return false;
+        }
+        long bit = 1L << index;
+        return (words.getAndAccumulate(index >>> 6, ~bit, (w, b) -> w & b) & bit) != 0;
+    }
+
+    // Sets the bits from fromIndex (inclusive) to toIndex (exclusive) a word at a time, clipped to the bitmap
+    public void set(int fromIndex, int toIndex) {
+        fromIndex = Math.max(0, fromIndex);
+        toIndex = Math.min(size, toIndex);
+        if (fromIndex >= toIndex) {
+            return;
+        }
+        int first = fromIndex >>> 6;
+        int last = (toIndex - 1) >>> 6;
+        for (int w = first; w <= last; w++) {
+            long mask = -1L;
+            if (w == first) {
+                mask &= -1L << fromIndex;
+            }
+            if (w == last) {
+                mask &= -1L >>> (63 - ((toIndex - 1) & 63));
+            }
+            words.getAndAccumulate(w, mask, (v, b) -> v | b);
+        }
+    }
+
+    // Sets every bit that is set in bits but not in except, a word at a time. Bits past the end are ignored
+    public void orAndNot(BitSet bits, ConcurrentBitSet except) {
+        long[] add = bits.toLongArray();
+        for (int w = 0; w < Math.min(add.length, words.length()); w++) {
+            long value = add[w] & ~except.words.get(w) & wordMask(w);
+            if (value != 0) {
+                words.getAndAccumulate(w, value, (v, b) -> v | b);
+            }
+        }
+    }
+
+    // Clears every bit that is set in other, a word at a time
+    public void andNot(ConcurrentBitSet other) {
+        for (int w = 0; w < Math.min(words.length(), other.words.length()); w++) {
+            long value = other.words.get(w);
+            if (value != 0 && (words.get(w) & value) != 0) {
+                words.getAndAccumulate(w, ~value, (v, b) -> v & b);
+            }
+        }
+    }
+
+    // Bits 64 * w to 64 * w + 63, for scans that combine bitmaps a word at a time
+    public long word(int w) {
+        return words.get(w);
+    }
+
+    // Bits of word w that lie inside the bitmap
+    private long wordMask(int w) {
+        int bits = size - (w << 6);
+        return bits >= 64 ? -1L : (1L << bits) - 1;
+    }
+
+    // Index of the first clear bit from fromIndex on, or size if there is none
+    public int nextClearBit(int fromIndex) {
+        for (int i = fromIndex; i < size; i++) {
+            if ((words.get(i >>> 6) & (1L << i)) == 0) {
+                return i;
+            }
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (int w = 0; w < words.length(); w++) {
+            if (words.get(w) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One bit per index, least significant bit first, (size + 7) / 8 bytes long. This is the BITFIELD layout
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[(size + 7) >>> 3];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (words.get(i >>> 3) >>> ((i & 7) << 3));
+        }
+        return bytes;
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (int w = 0; w < words.length(); w++) {
+            count += Long.bitCount(words.get(w));
+        }
+        return count;
+    }
+}
@@ -0,0 +1,102 @@
+package src;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Flushes completed pieces from the mapped file to disk on a background thread, so receiving threads never wait
+// on the disk. Pieces completed while a flush is running, or within the sync interval, are flushed together
+public class DiskSyncer {
+
+    // Forces the given consecutive pieces to disk
+    public interface Target {
+        void forcePieces(int firstPiece, int count) throws IOException;
+    }
+
+    private final Target target;
+    private final long interval; // Milliseconds to wait after a piece completes for more to flush with it
+    private final LinkedBlockingQueue<Integer> completed;
+    private final ArrayList<Integer> batch; // Only used by the syncer thread
+    private final Thread syncer;
+    private volatile boolean closed;
+    private volatile long flushes;
+    private volatile long pieces;
+    private final LatencyHistogram flushLatency;
+
+    public DiskSyncer(Target target, long interval, String name) {
+        this.target = target;
+        this.interval = interval;
+        this.completed = new LinkedBlockingQueue<Integer>();
+        this.batch = new ArrayList<Integer>();
+        this.flushLatency = new LatencyHistogram();
+        this.syncer = new Thread(this::syncLoop, name);
+        this.syncer.setDaemon(true); // The file is forced on close anyway; a crashed peer should not hang on it
+        this.syncer.start();
+    }
+
+    public void pieceCompleted(int pieceIndex) {
+        completed.add(pieceIndex);
+    }
+
+    private void syncLoop() {
+        while (!closed || !completed.isEmpty()) {
+            try {
+                Integer first = completed.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                if (interval > 0 && !closed) {
+                    Thread.sleep(interval);
+                }
+                batch.add(first);
+                completed.drainTo(batch);
+                flush();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Forces everything from the lowest to the highest piece in the batch. Pieces in between that did not
+    // change have no dirty pages, so including them costs next to nothing and saves a call per gap
+    private void flush() {
+        int first = Collections.min(batch);
+        int last = Collections.max(batch);
+        long start = System.nanoTime();
+        try {
+            target.forcePieces(first, last - first + 1);
+            flushLatency.record(System.nanoTime() - start);
+        } catch (IOException e) {
+            System.out.println("Failed to flush pieces " + first + " to " + last + " to disk");
+            e.printStackTrace();
+        }
+        pieces += batch.size();
+        flushes++;
+        batch.clear();
+    }
+
+    // Flushes the pieces still queued and stops the syncer thread
+    public void close() {
+        closed = true;
+        try {
+            syncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long flushes() {
+        return flushes;
+    }
+
+    public LatencyHistogram flushLatency() {
+        return flushLatency;
+    }
+
+    @Override
+    public String toString() {
+        return pieces + " pieces in " + flushes + " flushes";
+    }
+}
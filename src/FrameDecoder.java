@@ -0,0 +1,150 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+// Incrementally decodes length-prefixed messages from a channel, so a connection can be read in whatever chunks arrive
+public class FrameDecoder {
+
+    public interface Handler {
+        // Called for every message except PIECE. The payload is only valid for the duration of the call
+        void onMessage(int type, ByteBuffer payload) throws IOException;
+
+        // Returns the buffer the data of a PIECE message should be read into
+        ByteBuffer pieceTarget(int pieceIndex, int begin, int length) throws IOException;
+
+        // Called once the data of a PIECE message has been read completely into the buffer from pieceTarget.
+        // Data is null when the block was not sent
+        void onPiece(int pieceIndex, int begin, ByteBuffer data) throws IOException;
+    }
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int PIECE = 7;
+
+    private final Handler handler;
+    private final int pieceHeaderLength; // Length, type, index and, with blocks, the begin offset
+    private final ByteBuffer buffer;
+    private ByteBuffer body; // Set while a payload is read outside the buffer (piece data or an oversized message)
+    private int bodyType;
+    private int bodyIndex;
+    private int bodyBegin;
+
+    public FrameDecoder(Handler handler, boolean blocks) {
+        this.handler = handler;
+        this.pieceHeaderLength = blocks ? 13 : 9;
+        this.buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE); // Socket reads land here without an intermediate copy
+    }
+
+    // Reads whatever is available and dispatches every complete message. Returns the channel's read count
+    public int read(ReadableByteChannel channel) throws IOException {
+        return read(channel, Integer.MAX_VALUE);
+    }
+
+    // Reads at most max bytes, so a bandwidth-limited connection takes its share in small steps
+    public int read(ReadableByteChannel channel, int max) throws IOException {
+        if (body != null) {
+            int n = readAtMost(channel, body, max);
+            if (n >= 0 && !body.hasRemaining()) {
+                completeBody();
+            }
+            return n;
+        }
+        int n = readAtMost(channel, buffer, max);
+        if (n < 0) {
+            return n;
+        }
+        buffer.flip();
+        while (decode()) {
+            // Keep dispatching until only a partial message is left
+        }
+        buffer.compact();
+        return n;
+    }
+
+    private static int readAtMost(ReadableByteChannel channel, ByteBuffer target, int max) throws IOException {
+        if (target.remaining() <= max) {
+            return channel.read(target);
+        }
+        int limit = target.limit();
+        target.limit(target.position() + max);
+        try {
+            return channel.read(target);
+        } finally {
+            target.limit(limit);
+        }
+    }
+
+    // Decodes one message from the buffer. Returns false when more bytes are needed
+    private boolean decode() throws IOException {
+        if (body != null || buffer.remaining() < 5) {
+            return false;
+        }
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        int type = buffer.get(start + 4) & 0xff;
+        if (length < 1) {
+            throw new IOException("Received invalid message length " + length);
+        }
+        if (type == PIECE) {
+            int dataLength = length + 4 - pieceHeaderLength;
+            if (dataLength < 0) {
+                throw new IOException("Received invalid piece message length " + length);
+            }
+            if (buffer.remaining() < pieceHeaderLength) {
+                return false;
+            }
+            int pieceIndex = buffer.getInt(start + 5);
+            int begin = pieceHeaderLength > 9 ? buffer.getInt(start + 9) : 0;
+            buffer.position(start + pieceHeaderLength);
+            if (dataLength == 0) {
+                handler.onPiece(pieceIndex, begin, null);
+                return true;
+            }
+            startBody(type, pieceIndex, begin, handler.pieceTarget(pieceIndex, begin, dataLength));
+            return body == null;
+        }
+        int payloadLength = length - 1;
+        if (payloadLength > buffer.capacity() - 5) {
+            buffer.position(start + 5);
+            startBody(type, 0, 0, ByteBuffer.allocate(payloadLength));
+            return body == null;
+        }
+        if (buffer.remaining() < 5 + payloadLength) {
+            return false;
+        }
+        int limit = buffer.limit();
+        int end = start + 5 + payloadLength;
+        buffer.position(start + 5).limit(end);
+        handler.onMessage(type, buffer);
+        buffer.limit(limit).position(end);
+        return true;
+    }
+
+    // Moves buffered bytes into the payload target; the rest will be read into it directly
+    private void startBody(int type, int index, int begin, ByteBuffer target) throws IOException {
+        body = target;
+        bodyType = type;
+        bodyIndex = index;
+        bodyBegin = begin;
+        int count = Math.min(buffer.remaining(), body.remaining());
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + count);
+        body.put(buffer);
+        buffer.limit(limit);
+        if (!body.hasRemaining()) {
+            completeBody();
+        }
+    }
+
+    private void completeBody() throws IOException {
+        ByteBuffer completed = body;
+        body = null;
+        if (bodyType == PIECE) {
+            handler.onPiece(bodyIndex, bodyBegin, completed);
+        } else {
+            completed.flip();
+            handler.onMessage(bodyType, completed);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+// Writes frames taken off a neighbor's outbound queue. Consecutive messages go out in one gathering write,
+// header and payload buffers as they are, and a piece upload's data follows its header with transferTo.
+// Messages are written ahead of uploads that have not started, so a REQUEST or HAVE never waits for piece data
+// or for the upload throttle, which only counts piece data. SHUTDOWN and SHUTDOWN_ACK end the batch: every
+// neighbor has the whole file by then, so uploads that have not started are dropped, and nothing is written after
+// them, since the neighbor stops reading once it has them and unread data would reset the connection.
+// Used by one thread at a time: the neighbor's writer thread, or its selector loop with the NIO transport
+public class FrameWriter {
+
+    private static final int MAX_GATHER = 64; // Buffers handed to one write call
+
+    private final P2PFile p2pFile;
+    private final RateMeter uploaded; // Piece data written to the neighbor
+    private final LongAdder piecesUploaded; // Uploads finished that end a piece
+    private final Throttle throttle; // Piece data written to the neighbor
+    private long throttleDelay; // Set when flush stopped because the throttle had no bytes left
+    private boolean ending; // SHUTDOWN or SHUTDOWN_ACK was taken; later uploads are dropped
+    private boolean ended; // And went out; later frames are dropped
+    private final ArrayDeque<ByteBuffer[]> messages; // Taken off the queue and not yet fully written
+    private final ArrayDeque<OutboundQueue.PieceUpload> uploads;
+    private final ArrayList<Object> taken;
+    private final ByteBuffer[] gather;
+    private volatile long frames; // Frames written, for the shutdown summary
+    private volatile long writes; // Write calls made for them
+
+    public FrameWriter(P2PFile p2pFile, RateMeter uploaded, LongAdder piecesUploaded, Throttle throttle) {
+        this.p2pFile = p2pFile;
+        this.uploaded = uploaded;
+        this.piecesUploaded = piecesUploaded;
+        this.throttle = throttle;
+        this.messages = new ArrayDeque<ByteBuffer[]>();
+        this.uploads = new ArrayDeque<OutboundQueue.PieceUpload>();
+        this.taken = new ArrayList<Object>();
+        this.gather = new ByteBuffer[MAX_GATHER];
+    }
+
+    // Moves every frame waiting on the queue into the batch. Returns how many were moved
+    public int take(OutboundQueue queue) {
+        int count = queue.drainTo(taken);
+        for (Object frame : taken) {
+            add(frame);
+        }
+        taken.clear();
+        return count;
+    }
+
+    public void add(Object frame) {
+        if (ended) {
+            return;
+        }
+        if (frame instanceof OutboundQueue.PieceUpload) {
+            if (!ending) {
+                uploads.add((OutboundQueue.PieceUpload) frame);
+            }
+        } else {
+            ByteBuffer[] parts = (ByteBuffer[]) frame;
+            if (endsExchange(parts)) {
+                ending = true;
+                uploads.removeIf(upload -> upload.header.position() == 0); // A started one is finished first
+            }
+            messages.add(parts);
+        }
+    }
+
+    public boolean isEmpty() {
+        return messages.isEmpty() && uploads.isEmpty();
+    }
+
+    // True while messages wait that could go out now, ahead of uploads the throttle holds back. Not while an
+    // upload is part way through, since its data has to follow its header
+    public boolean messagesReady() {
+        OutboundQueue.PieceUpload upload = uploads.peek();
+        return !messages.isEmpty() && (upload == null || upload.header.position() == 0);
+    }
+
+    // SHUTDOWN or SHUTDOWN_ACK, by the type byte after the length
+    private static boolean endsExchange(ByteBuffer[] parts) {
+        byte type = parts[0].get(4);
+        return type == 8 || type == 9;
+    }
+
+    // Writes as much of the batch as the channel accepts. True once the batch is empty; a non-blocking
+    // channel returns false when its socket buffer is full, and any channel when throttleDelay is set
+    public boolean flush(SocketChannel channel) throws IOException {
+        boolean limited = throttle.isLimited();
+        throttleDelay = 0;
+        while (!isEmpty()) {
+            OutboundQueue.PieceUpload upload = uploads.peek();
+            if (upload != null && upload.header.position() > 0) {
+                // Nothing may come between a PIECE header and its data, so a started upload is finished first
+                if (!sendPieceData(upload, channel, limited)) {
+                    return false;
+                }
+                uploads.poll();
+                frames++;
+                if (upload.begin + upload.length == p2pFile.pieceLength(upload.pieceIndex)) {
+                    piecesUploaded.increment();
+                }
+                continue;
+            }
+            // The next upload's header joins the messages' write if the throttle lets its data follow
+            long delay = upload != null && limited ? throttle.delayNanos() : 0;
+            boolean startUpload = upload != null && delay <= 0;
+            int count = 0;
+            int included = 0; // Messages whose remaining buffers all made it into the gather
+            for (ByteBuffer[] parts : messages) {
+                if (count + parts.length > MAX_GATHER) {
+                    break;
+                }
+                for (ByteBuffer part : parts) {
+                    if (part.hasRemaining()) {
+                        gather[count++] = part;
+                    }
+                }
+                included++;
+            }
+            boolean withHeader = startUpload && included == messages.size() && count < MAX_GATHER;
+            if (withHeader) {
+                gather[count++] = upload.header;
+            }
+            if (count == 0) {
+                throttleDelay = delay; // Only an upload is left and the throttle holds it back
+                return false;
+            }
+            channel.write(gather, 0, count);
+            writes++;
+            Arrays.fill(gather, 0, count, null);
+            // Drop the messages that went out completely
+            for (int i = 0; i < included; i++) {
+                ByteBuffer[] parts = messages.peek();
+                if (parts[parts.length - 1].hasRemaining()) {
+                    return false;
+                }
+                messages.poll();
+                frames++;
+                if (endsExchange(parts)) {
+                    ended = true;
+                    messages.clear();
+                    uploads.clear();
+                    return true;
+                }
+            }
+            if (withHeader && upload.header.hasRemaining()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Writes the rest of a started upload: its header if a write cut it short, then the block from the file.
+    // While limited the data goes out a quantum at a time, each once the throttle allows it
+    private boolean sendPieceData(OutboundQueue.PieceUpload upload, SocketChannel channel, boolean limited) throws IOException {
+        if (upload.header.hasRemaining()) {
+            channel.write(upload.header);
+            writes++;
+            if (upload.header.hasRemaining()) {
+                return false;
+            }
+        }
+        while (upload.sent < upload.length) {
+            if (limited && (throttleDelay = throttle.delayNanos()) > 0) {
+                return false;
+            }
+            int remaining = upload.length - upload.sent;
+            int chunk = limited ? Math.min(remaining, Throttle.QUANTUM) : remaining;
+            long sent = p2pFile.transferPiece(upload.pieceIndex, upload.begin + upload.sent, chunk, channel);
+            upload.sent += sent;
+            uploaded.add(sent);
+            throttle.consume(sent);
+            writes++;
+            if (sent < chunk) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Nanoseconds until the throttle allows more, when the last flush stopped for it; 0 otherwise
+    public long throttleDelay() {
+        return throttleDelay;
+    }
+
+    public long frames() {
+        return frames;
+    }
+
+    public long writes() {
+        return writes;
+    }
+}
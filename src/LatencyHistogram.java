@@ -0,0 +1,90 @@
+package src;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts durations in power-of-two microsecond buckets. Recording only adds to striped counters, so any number
+// of threads can record without contending; a snapshot reads the counters as they are at that moment
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 32; // Bucket i holds durations below 2^i microseconds, the last one the rest
+
+    private final LongAdder[] buckets;
+    private final LongAdder totalMicros;
+
+    public LatencyHistogram() {
+        this.buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+        this.totalMicros = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+        totalMicros.add(micros);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return new Snapshot(counts, totalMicros.sum());
+    }
+
+    // Read through JMX as a composite of its getters
+    public static class Snapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long totalMicros;
+
+        Snapshot(long[] buckets, long totalMicros) {
+            long count = 0;
+            for (long c : buckets) {
+                count += c;
+            }
+            this.buckets = buckets;
+            this.count = count;
+            this.totalMicros = totalMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros() {
+            return count > 0 ? totalMicros / count : 0;
+        }
+
+        public long getP50Micros() {
+            return percentile(0.50);
+        }
+
+        public long getP90Micros() {
+            return percentile(0.90);
+        }
+
+        public long getP99Micros() {
+            return percentile(0.99);
+        }
+
+        // Counts per bucket; bucket i holds durations below 2^i microseconds
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+
+        // Upper bound of the bucket the percentile falls in
+        private long percentile(double p) {
+            long rank = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -1,75 +1,294 @@
 package src;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
+// Events are put in a bounded ring of preallocated slots and written by one background thread, so neighbor
+// threads never wait on the file or on each other. Lines are formatted on the writer thread and keep the exact format
 public class Log {
+    private static final int CONNECTED_TO = 0;
+    private static final int CONNECTED_FROM = 1;
+    private static final int PREFERRED_NEIGHBORS = 2;
+    private static final int OPTIMISTICALLY_UNCHOKED = 3;
+    private static final int UNCHOKED = 4;
+    private static final int CHOKED = 5;
+    private static final int RECEIVED_HAVE = 6;
+    private static final int RECEIVED_INTERESTED = 7;
+    private static final int RECEIVED_NOT_INTERESTED = 8;
+    private static final int DOWNLOADED_PIECE = 9;
+    private static final int COMPLETION = 10;
+
+    private static final int BATCH_SIZE = 64 * 1024; // Bytes written to the file at most per write call
+    private static final long IDLE_WAIT = 100_000_000; // Nanoseconds the writer sleeps at most when there is nothing to write
+
     private final int id;
     private final String path;
+    private final boolean blockWhenFull; // Otherwise events are dropped while the ring is full
+    private final int mask;
+    // Slot fields. A slot belongs to the producer that claimed it until its sequence is published
+    private final AtomicLongArray sequence;
+    private final int[] kinds;
+    private final long[] times;
+    private final int[] args1;
+    private final int[] args2;
+    private final int[] args3;
+    private final int[] args4;
+    private final String[] texts;
+    private final AtomicLong tail; // Next slot to claim
+    private long head; // Next slot to write, only used by the writer thread
+    private final AtomicLong dropped;
+    private final Thread writer;
+    private volatile boolean writerWaiting;
+    private volatile boolean closed;
+    private final FileChannel channel;
+    private final ByteBuffer batch;
+    private final StringBuilder line;
+    private final SimpleDateFormat dateFormat;
+    private long cachedSecond = -1;
+    private String cachedTime;
 
-    public Log(int peerID) {
+    public Log(int peerID, int queueSize, boolean blockWhenFull) throws IOException {
         this.id = peerID;
         this.path = "log_peer_" + peerID + ".log";
+        this.blockWhenFull = blockWhenFull;
+        int capacity = Integer.highestOneBit(Math.max(2, queueSize - 1)) << 1; // Rounded up to a power of two
+        this.mask = capacity - 1;
+        this.sequence = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequence.set(i, i);
+        }
+        this.kinds = new int[capacity];
+        this.times = new long[capacity];
+        this.args1 = new int[capacity];
+        this.args2 = new int[capacity];
+        this.args3 = new int[capacity];
+        this.args4 = new int[capacity];
+        this.texts = new String[capacity];
+        this.tail = new AtomicLong();
+        this.dropped = new AtomicLong();
+        try {
+            this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new IOException("Failed to open log!");
+        }
+        this.batch = ByteBuffer.allocate(BATCH_SIZE);
+        this.line = new StringBuilder(256);
+        this.dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        this.writer = new Thread(this::writeLoop, "log-writer-" + peerID);
+        this.writer.setDaemon(true); // Peer closes the log on shutdown; a crashed peer should not hang on it
+        this.writer.start();
+    }
+
+    // Claims a slot, fills it and publishes it to the writer
+    private void makeLog(int kind, int arg1, int arg2, int arg3, int arg4, String text) {
+        long time = System.currentTimeMillis();
+        long position;
+        while (true) {
+            position = tail.get();
+            long available = sequence.get((int) position & mask) - position;
+            if (available == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (available < 0) {
+                // The writer has not freed this slot yet
+                if (!blockWhenFull || closed) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                wakeWriter();
+                LockSupport.parkNanos(10_000);
+            }
+        }
+        int slot = (int) position & mask;
+        kinds[slot] = kind;
+        times[slot] = time;
+        args1[slot] = arg1;
+        args2[slot] = arg2;
+        args3[slot] = arg3;
+        args4[slot] = arg4;
+        texts[slot] = text;
+        sequence.set(slot, position + 1);
+        if (writerWaiting) {
+            wakeWriter();
+        }
+    }
+
+    private void wakeWriter() {
+        writerWaiting = false;
+        LockSupport.unpark(writer);
+    }
+
+    private void writeLoop() {
+        while (true) {
+            boolean wrote = false;
+            while (sequence.get((int) head & mask) == head + 1) {
+                int slot = (int) head & mask;
+                format(slot);
+                texts[slot] = null;
+                sequence.set(slot, head + mask + 1); // Free the slot for the lap after next
+                head++;
+                wrote = true;
+            }
+            if (wrote) {
+                flush();
+                continue;
+            }
+            if (closed) {
+                return;
+            }
+            writerWaiting = true;
+            if (sequence.get((int) head & mask) != head + 1 && !closed) {
+                LockSupport.parkNanos(this, IDLE_WAIT);
+            }
+            writerWaiting = false;
+        }
+    }
+
+    private void format(int slot) {
+        line.setLength(0);
+        line.append('[').append(timeOf(times[slot])).append("]: ");
+        int a = args1[slot], b = args2[slot];
+        switch (kinds[slot]) {
+            case CONNECTED_TO:
+                line.append("Peer ").append(a).append(" makes a connection to Peer ").append(b).append('.');
+                break;
+            case CONNECTED_FROM:
+                line.append("Peer ").append(a).append(" is connected from Peer ").append(b).append('.');
+                break;
+            case PREFERRED_NEIGHBORS:
+                line.append("Peer ").append(a).append(" has the preferred neighbors ").append(texts[slot]).append('.');
+                break;
+            case OPTIMISTICALLY_UNCHOKED:
+                line.append("Peer ").append(a).append(" has the optimistically unchoked neighbor ").append(b).append('.');
+                break;
+            case UNCHOKED:
+                line.append("Peer ").append(a).append(" is unchoked by ").append(b).append('.');
+                break;
+            case CHOKED:
+                line.append("Peer ").append(a).append(" is choked by ").append(b).append('.');
+                break;
+            case RECEIVED_HAVE:
+                line.append("Peer ").append(a).append(" received the 'have' message from ").append(b)
+                        .append(" for the piece ").append(args3[slot]).append('.');
+                break;
+            case RECEIVED_INTERESTED:
+                line.append("Peer ").append(a).append(" received the 'interested' message from ").append(b).append('.');
+                break;
+            case RECEIVED_NOT_INTERESTED:
+                line.append("Peer ").append(a).append(" received the 'not interested' message from ").append(b).append('.');
+                break;
+            case DOWNLOADED_PIECE:
+                line.append("Peer ").append(a).append(" has downloaded the piece ").append(args3[slot]).append(" from ").append(b)
+                        .append(". Now the number of pieces it has is ").append(args4[slot]).append('.');
+                break;
+            case COMPLETION:
+                line.append("Peer ").append(a).append(" has downloaded the complete file.");
+                break;
+        }
+        line.append('\n');
+        // Log lines are ASCII, so chars are copied as bytes without building a String
+        if (line.length() > batch.remaining()) {
+            flush();
+        }
+        for (int i = 0; i < line.length(); i++) {
+            if (!batch.hasRemaining()) {
+                flush();
+            }
+            batch.put((byte) line.charAt(i));
+        }
+    }
+
+    // The formatted time only changes once a second, so it is reused within the second
+    private String timeOf(long millis) {
+        long second = millis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTime = dateFormat.format(new Date(millis));
+        }
+        return cachedTime;
     }
 
-    private String timeNow() {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        Date date = new Date();
-        return dateFormat.format(date);
+    private void flush() {
+        batch.flip();
+        write(batch);
+        batch.clear();
     }
 
-    private synchronized void makeLog(String message) throws IOException {
-            try (FileWriter writer = new FileWriter(path, true)) {
-                writer.write("[" + timeNow() + "]: " + message + "\n");
-            } catch (IOException e) {
-                System.out.println(message);
-                e.printStackTrace();
-                throw new IOException("Failed to write to log!");
+    private void write(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
             }
+        } catch (IOException e) {
+            System.out.println("Failed to write to log!");
+            e.printStackTrace();
+        }
+    }
+
+    // Writes every event logged so far and closes the file. Events logged afterwards are dropped
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if (dropped.get() > 0) {
+            System.out.println("Peer " + id + " dropped " + dropped.get() + " log events while the log queue was full");
+        }
     }
 
     public void logConnectedTo(int peerID1, int peerID2) throws IOException {
-        makeLog("Peer " + peerID1 + " makes a connection to Peer " + peerID2 + ".");
+        makeLog(CONNECTED_TO, peerID1, peerID2, 0, 0, null);
     }
 
     public void logConnectedFrom(int peerID1, int peerID2) throws IOException {
-        makeLog("Peer " + peerID1 + " is connected from Peer " + peerID2 + ".");
+        makeLog(CONNECTED_FROM, peerID1, peerID2, 0, 0, null);
     }
 
     public void logPreferredNeighbors(int peerID, String preferredNeighborList) throws IOException {
-        makeLog("Peer " + peerID + " has the preferred neighbors " + preferredNeighborList + ".");
+        makeLog(PREFERRED_NEIGHBORS, peerID, 0, 0, 0, preferredNeighborList);
     }
 
     public void logOptimisticallyUnchokedNeighbor(int peerID, int optimisticallyUnchokedNeighborID) throws IOException {
-        makeLog("Peer " + peerID + " has the optimistically unchoked neighbor " + optimisticallyUnchokedNeighborID + ".");
+        makeLog(OPTIMISTICALLY_UNCHOKED, peerID, optimisticallyUnchokedNeighborID, 0, 0, null);
     }
 
     public void logUnchoked(int peerID1, int peerID2) throws IOException {
-        makeLog("Peer " + peerID1 + " is unchoked by " + peerID2 + ".");
+        makeLog(UNCHOKED, peerID1, peerID2, 0, 0, null);
     }
 
     public void logChoked(int peerID1, int peerID2) throws IOException {
-        makeLog("Peer " + peerID1 + " is choked by " + peerID2 + ".");
+        makeLog(CHOKED, peerID1, peerID2, 0, 0, null);
     }
 
     public void logReceivedHave(int peerID1, int peerID2, int pieceIndex) throws IOException {
-        makeLog("Peer " + peerID1 + " received the 'have' message from " + peerID2 + " for the piece " + pieceIndex + ".");
+        makeLog(RECEIVED_HAVE, peerID1, peerID2, pieceIndex, 0, null);
     }
 
     public void logReceivedInterested(int peerID1, int peerID2) throws IOException {
-        makeLog("Peer " + peerID1 + " received the 'interested' message from " + peerID2 + ".");
+        makeLog(RECEIVED_INTERESTED, peerID1, peerID2, 0, 0, null);
     }
 
     public void logReceivedNotInterested(int peerID1, int peerID2) throws IOException {
-        makeLog("Peer " + peerID1 + " received the 'not interested' message from " + peerID2 + ".");
+        makeLog(RECEIVED_NOT_INTERESTED, peerID1, peerID2, 0, 0, null);
     }
 
     public void logDownloadedPiece(int peerID1, int peerID2, int pieceIndex, int numberOfPieces) throws IOException {
-        makeLog("Peer " + peerID1 + " has downloaded the piece " + pieceIndex + " from " + peerID2 + ". Now the number of pieces it has is " + numberOfPieces + ".");
+        makeLog(DOWNLOADED_PIECE, peerID1, peerID2, pieceIndex, numberOfPieces, null);
     }
 
     public void logCompletionOfDownload(int peerID) throws IOException {
-        makeLog("Peer " + peerID + " has downloaded the complete file.");
+        makeLog(COMPLETION, peerID, 0, 0, 0, null);
     }
 }
@@ -0,0 +1,22 @@
+package src;
+
+// One neighbor as seen by the peer, registered as src:type=Neighbor,peer=<peer id>,id=<neighbor id>
+public interface NeighborMXBean {
+    int getNeighborId();
+    int getPieces();
+    long getBytesDownloaded();
+    long getBytesUploaded();
+    // Pieces completed with a block from the neighbor, and pieces whose last block was sent to it
+    long getPiecesDownloaded();
+    long getPiecesUploaded();
+    // Bytes per second over the last 5 seconds, as of the read
+    long getDownloadRate();
+    long getUploadRate();
+    boolean isUnchoked(); // We let the neighbor download from us
+    boolean isChokingUs();
+    boolean isInterestedInUs();
+    boolean isInteresting(); // The neighbor has pieces we do not
+    int getOutstandingRequests();
+    int getOutboundQueueDepth();
+    LatencyHistogram.Snapshot getRequestLatency();
+}
@@ -0,0 +1,303 @@
+package src;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Runs every neighbor connection on a few selector threads instead of a responder and initiator thread per neighbor.
+// Messages are framed exactly as in the blocking mode; only the way bytes move to and from the sockets changes.
+public class NioTransport {
+
+    // How long connections may take to exchange SHUTDOWN/SHUTDOWN_ACK once the peer is done
+    private static final long DRAIN_TIMEOUT = 10_000_000_000L;
+
+    private final Peer peer;
+    private final P2PFile p2pFile;
+    private final Loop[] loops;
+    private int nextLoop;
+    private volatile long drainDeadline; // 0 until the peer is done
+
+    // State of one neighbor connection, only touched by the loop it belongs to (apart from the outbound queue)
+    public class Connection {
+        final Peer.Neighbor neighbor;
+        final SocketChannel channel;
+        final Loop loop;
+        final FrameDecoder decoder;
+        final OutboundQueue outbound; // The neighbor's queue, drained by this loop
+        final FrameWriter writer;
+        final AtomicBoolean writeScheduled;
+        SelectionKey key;
+        long readPausedUntil; // System.nanoTime at which a throttled direction resumes, 0 while it is not paused
+        long writePausedUntil;
+
+        Connection(Peer.Neighbor neighbor, Loop loop) {
+            this.neighbor = neighbor;
+            this.channel = neighbor.channel;
+            this.loop = loop;
+            this.decoder = neighbor.decoder;
+            this.outbound = neighbor.outbound;
+            this.writer = neighbor.frameWriter;
+            this.writeScheduled = new AtomicBoolean(false);
+        }
+    }
+
+    class Loop implements Runnable {
+        final Selector selector;
+        final ConcurrentLinkedQueue<Connection> pending; // New registrations and connections with writes queued
+        final ArrayList<Connection> connections;
+        final ArrayList<Connection> paused; // Connections waiting on a bandwidth limit
+        final Thread thread;
+
+        Loop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.pending = new ConcurrentLinkedQueue<Connection>();
+            this.connections = new ArrayList<Connection>();
+            this.paused = new ArrayList<Connection>();
+            this.thread = new Thread(this, "nio-loop-" + index);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    selector.select(selectTimeout());
+                    resumePaused();
+                    Connection c;
+                    while ((c = pending.poll()) != null) {
+                        prepare(c);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        c = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                read(c);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                write(c);
+                            }
+                        } catch (IOException e) {
+                            if (drainDeadline == 0) e.printStackTrace();
+                            close(c);
+                        } catch (RuntimeException e) {
+                            // A bug handling one connection's messages drops that connection, not the whole loop
+                            e.printStackTrace();
+                            close(c);
+                        }
+                    }
+                    if (drainDeadline != 0 && drained()) {
+                        break;
+                    }
+                }
+                for (Connection c : new ArrayList<Connection>(connections)) {
+                    close(c);
+                }
+                selector.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Wakes up in time for the first paused connection to resume
+        private long selectTimeout() {
+            long timeout = 1000;
+            long now = System.nanoTime();
+            for (Connection c : paused) {
+                timeout = Math.min(timeout, millisUntil(c.readPausedUntil, now));
+                timeout = Math.min(timeout, millisUntil(c.writePausedUntil, now));
+            }
+            return timeout;
+        }
+
+        private long millisUntil(long until, long now) {
+            return until == 0 ? Long.MAX_VALUE : Math.max(1, TimeUnit.NANOSECONDS.toMillis(until - now) + 1);
+        }
+
+        private void resumePaused() {
+            if (paused.isEmpty()) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Iterator<Connection> it = paused.iterator(); it.hasNext(); ) {
+                Connection c = it.next();
+                if (c.readPausedUntil != 0 && now >= c.readPausedUntil) {
+                    c.readPausedUntil = 0;
+                }
+                if (c.writePausedUntil != 0 && now >= c.writePausedUntil) {
+                    c.writePausedUntil = 0;
+                }
+                if (c.readPausedUntil == 0 && c.writePausedUntil == 0) {
+                    it.remove();
+                }
+                if (c.key != null && c.key.isValid()) {
+                    updateWriteInterest(c);
+                }
+            }
+        }
+
+        private void pause(Connection c) {
+            if (!paused.contains(c)) {
+                paused.add(c);
+            }
+            updateWriteInterest(c);
+        }
+
+        private void prepare(Connection c) {
+            try {
+                if (c.key == null) {
+                    c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+                    connections.add(c);
+                }
+                if (c.key.isValid()) {
+                    updateWriteInterest(c);
+                }
+            } catch (ClosedChannelException e) {
+                close(c);
+            }
+        }
+
+        // Closes connections that finished the shutdown exchange or were disconnected. True once none are left or the deadline passed
+        private boolean drained() {
+            for (Connection c : new ArrayList<Connection>(connections)) {
+                if (!c.neighbor.listening && ((c.outbound.isEmpty() && c.writer.isEmpty()) || c.outbound.isClosed())) {
+                    close(c);
+                }
+            }
+            return connections.isEmpty() || System.nanoTime() > drainDeadline;
+        }
+
+        private void close(Connection c) {
+            if (drainDeadline == 0) {
+                try {
+                    peer.connectionLost(c.neighbor); // Closed before the shutdown exchange
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            c.neighbor.listening = false;
+            connections.remove(c);
+            paused.remove(c);
+            if (c.key != null) {
+                c.key.cancel();
+            }
+            try {
+                c.channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    public NioTransport(Peer peer, P2PFile p2pFile, int threads) throws IOException {
+        this.peer = peer;
+        this.p2pFile = p2pFile;
+        this.loops = new Loop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(i);
+            loops[i].thread.start();
+        }
+    }
+
+    // Hands a connected, handshaken neighbor over to one of the selector loops
+    public synchronized void register(Peer.Neighbor n) throws IOException {
+        n.channel.configureBlocking(false);
+        Loop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        Connection c = new Connection(n, loop);
+        n.nioConnection = c;
+        loop.pending.add(c);
+        loop.selector.wakeup();
+    }
+
+    // Stops the loops once every connection has finished shutting down
+    public void drain() {
+        drainDeadline = System.nanoTime() + DRAIN_TIMEOUT;
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    // Called after a frame was queued on the connection's outbound queue
+    public void scheduleWrite(Connection c) {
+        if (c.writeScheduled.compareAndSet(false, true)) {
+            c.loop.pending.add(c);
+            c.loop.selector.wakeup();
+        }
+    }
+
+    private void read(Connection c) throws IOException {
+        Throttle throttle = c.neighbor.downloadThrottle;
+        int max = throttle.isLimited() ? Throttle.QUANTUM : Integer.MAX_VALUE;
+        while (true) {
+            int n = c.decoder.read(c.channel, max);
+            if (n < 0) {
+                c.loop.close(c); // Neighbor closed the connection
+                return;
+            }
+            if (n == 0) {
+                break;
+            }
+            throttle.consume(n);
+            long delay = throttle.delayNanos();
+            if (delay > 0) {
+                // Stop reading until the buckets refill; the socket buffer fills up and TCP slows the sender
+                c.readPausedUntil = System.nanoTime() + delay;
+                c.loop.pause(c);
+                break;
+            }
+        }
+        if (c.neighbor.listening) {
+            peer.requestPiece(c.neighbor);
+        }
+    }
+
+    // Writes everything queued for the connection in as few gathering writes as the socket allows
+    private void write(Connection c) throws IOException {
+        while (c.writer.flush(c.channel)) {
+            if (c.writer.take(c.outbound) == 0) {
+                break;
+            }
+        }
+        long delay = c.writer.throttleDelay();
+        if (delay > 0) {
+            c.writePausedUntil = System.nanoTime() + delay;
+            c.loop.pause(c);
+            return;
+        }
+        updateWriteInterest(c);
+    }
+
+    // Keeps OP_WRITE set while frames are queued. Once the queue is empty writeScheduled is cleared,
+    // so the next send schedules the connection again. A direction paused by a bandwidth limit stays off,
+    // except that messages are written while uploads wait for the throttle
+    private void updateWriteInterest(Connection c) {
+        int read = c.readPausedUntil == 0 ? SelectionKey.OP_READ : 0;
+        int write = SelectionKey.OP_WRITE;
+        if (c.writePausedUntil != 0) {
+            // Frames queued from here on schedule the connection again, so a REQUEST or HAVE is not held until
+            // the pause ends
+            c.writeScheduled.set(false);
+            c.writer.take(c.outbound);
+            c.key.interestOps(read | (c.writer.messagesReady() ? write : 0));
+            return;
+        }
+        if (!c.outbound.isEmpty() || !c.writer.isEmpty()) {
+            c.key.interestOps(read | write); // While writes are paused writeScheduled stays set, resuming rechecks
+            return;
+        }
+        c.key.interestOps(read);
+        c.writeScheduled.set(false);
+        // A frame queued after the isEmpty check would otherwise wait for an unrelated wakeup
+        if (!c.outbound.isEmpty() && c.writeScheduled.compareAndSet(false, true)) {
+            c.key.interestOps(read | write);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package src;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Frames waiting to be written to one neighbor. Any thread may queue a frame; only the neighbor's writer
+// (its writer thread, or its selector loop with the NIO transport) takes them off
+public class OutboundQueue {
+
+    // A block queued for upload as one entry, so no other frame can be written between its header and its data
+    static class PieceUpload {
+        final ByteBuffer header;
+        final int pieceIndex;
+        final int begin;
+        final int length;
+        int sent;
+
+        PieceUpload(ByteBuffer header, int pieceIndex, int begin, int length) {
+            this.header = header;
+            this.pieceIndex = pieceIndex;
+            this.begin = begin;
+            this.length = length;
+        }
+    }
+
+    private static final Object CLOSED = new Object(); // Queued by close to wake a writer waiting in take
+
+    private final LinkedBlockingQueue<Object> frames; // Messages as header and payload buffers, and PieceUploads
+    private final Semaphore uploadSlots; // Only piece uploads count against the capacity, other messages never wait
+    private final AtomicInteger overflow; // Uploads queued past the capacity by offerNow
+    private volatile long overflowSince; // System.nanoTime when the uploads went past the capacity, 0 while within it
+    private final AtomicInteger maxDepth;
+    private volatile boolean closed;
+
+    public OutboundQueue(int capacity) {
+        this.frames = new LinkedBlockingQueue<Object>();
+        this.uploadSlots = new Semaphore(Math.max(1, capacity));
+        this.overflow = new AtomicInteger();
+        this.maxDepth = new AtomicInteger();
+    }
+
+    // Queues a frame. A piece upload waits up to timeoutMillis for room and false is returned if the uploads stayed
+    // at capacity; other messages are small and bounded by the protocol, so they are queued at once. Frames queued
+    // after close are dropped
+    public boolean offer(Object frame, long timeoutMillis) throws InterruptedException {
+        if (closed) {
+            return true;
+        }
+        if (frame instanceof PieceUpload && !uploadSlots.tryAcquire()
+                && (timeoutMillis <= 0 || !uploadSlots.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))) {
+            return false;
+        }
+        add(frame);
+        return true;
+    }
+
+    // Queues a frame without waiting, for threads that drain queues themselves. An upload with no room is queued
+    // past the capacity; false is returned once the uploads have been past it for longer than graceMillis
+    public boolean offerNow(Object frame, long graceMillis) {
+        if (closed) {
+            return true;
+        }
+        boolean stalled = false;
+        if (frame instanceof PieceUpload && !uploadSlots.tryAcquire()) {
+            long now = System.nanoTime();
+            if (overflow.getAndIncrement() == 0) {
+                overflowSince = now;
+            } else {
+                stalled = now - overflowSince > TimeUnit.MILLISECONDS.toNanos(graceMillis);
+            }
+        }
+        add(frame);
+        return !stalled;
+    }
+
+    private void add(Object frame) {
+        frames.add(frame);
+        int depth = frames.size();
+        int max = maxDepth.get();
+        while (depth > max && !maxDepth.compareAndSet(max, depth)) {
+            max = maxDepth.get();
+        }
+    }
+
+    // An upload left the queue: it frees room, unless it only takes one that was queued past the capacity
+    private void taken(Object frame) {
+        if (!(frame instanceof PieceUpload)) {
+            return;
+        }
+        int over;
+        while ((over = overflow.get()) > 0) {
+            if (overflow.compareAndSet(over, over - 1)) {
+                return;
+            }
+        }
+        uploadSlots.release();
+    }
+
+    // Waits for the next frame. Returns null once the queue is closed and the frames queued before the close are taken
+    public Object take() throws InterruptedException {
+        while (true) {
+            Object frame = closed ? frames.poll() : frames.take();
+            if (frame != CLOSED) {
+                taken(frame);
+                return frame;
+            }
+        }
+    }
+
+    // Waits up to timeout for the next frame; null if none arrived or the queue was closed meanwhile
+    public Object poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Object frame = frames.poll(timeout, unit);
+        if (frame == CLOSED) {
+            return null;
+        }
+        taken(frame);
+        return frame;
+    }
+
+    // Moves every waiting frame to the collection. Returns how many were moved
+    public int drainTo(Collection<Object> target) {
+        int count = 0;
+        Object frame;
+        while ((frame = frames.poll()) != null) {
+            if (frame == CLOSED) {
+                continue;
+            }
+            taken(frame);
+            target.add(frame);
+            count++;
+        }
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return depth() == 0;
+    }
+
+    // Frames currently waiting
+    public int depth() {
+        int size = frames.size();
+        return closed && frames.contains(CLOSED) ? size - 1 : size;
+    }
+
+    // Most frames that were waiting at once
+    public int maxDepth() {
+        return maxDepth.get();
+    }
+
+    // No more frames will be queued; the writer finishes the ones already waiting
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            frames.add(CLOSED);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -1,27 +1,66 @@
 package src;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Arrays;
-import java.util.BitSet;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-public class P2PFile {
+public class P2PFile implements P2PFileMXBean {
+
+    // Upper bound on a single mapping, rounded down to whole pieces so a piece never spans two windows
+    private static final long MAX_WINDOW_SIZE = 1L << 30;
 
     private final String filePath;
     private final long pieceSize;
     private final long fileSize;
-    private final HashMap<Integer, byte[]> pieces;
-    private final BitSet pieceAvailability;
+    private final long dataSize; // Bytes actually backed by the file (a seed file may be shorter than FileSize)
+    private final long windowSize;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final FileChannel.MapMode mapMode;
+    private final AtomicReferenceArray<MappedByteBuffer> windows; // Mapped on first use
+    private final ConcurrentBitSet pieceAvailability;
+    private final int blockSize; // Pieces are requested and assembled in blocks of this size
+    private final int blocksPerPiece;
+    private final ConcurrentBitSet blocksReceived; // Indexed by block id, see blockId
+    private final BufferPool scratch; // Duplicate blocks are read into these and dropped
+    private volatile DiskSyncer syncer; // Flushes completed pieces in the background when a sync policy is set
 
-    public P2PFile(String filePath, long fileSize, long pieceSize, boolean hasFile) throws IOException {
+    public P2PFile(String filePath, long fileSize, long pieceSize, int blockSize, int scratchBuffers, boolean hasFile) throws IOException {
         this.filePath = filePath;
         this.fileSize = fileSize;
         this.pieceSize = pieceSize;
-        this.pieceAvailability = new BitSet();
-        this.pieces = new HashMap<Integer,byte[]>();
+        this.blockSize = (blockSize <= 0 || blockSize > pieceSize) ? (int)pieceSize : blockSize;
+        this.blocksPerPiece = (int)((pieceSize + this.blockSize - 1) / this.blockSize);
+        int pieceCount = (int)((fileSize + pieceSize - 1) / pieceSize);
+        this.pieceAvailability = new ConcurrentBitSet(pieceCount);
+        this.blocksReceived = new ConcurrentBitSet(pieceCount * blocksPerPiece);
+        this.scratch = new BufferPool(this.blockSize, scratchBuffers);
+        this.windowSize = Math.max(1, MAX_WINDOW_SIZE / pieceSize) * pieceSize;
+        File f = new File(filePath);
+        try {
+            if (hasFile) {
+                if (!f.exists()) {
+                    createEmptyFile(f);
+                }
+                this.file = new RandomAccessFile(f, "r");
+                this.mapMode = FileChannel.MapMode.READ_ONLY;
+                this.dataSize = Math.min(fileSize, file.length());
+            } else {
+                this.file = new RandomAccessFile(f, "rw");
+                this.file.setLength(fileSize); // Reserve the full file so every piece maps in place
+                this.mapMode = FileChannel.MapMode.READ_WRITE;
+                this.dataSize = fileSize;
+            }
+        } catch (IOException e) {
+            throw new IOException("Error opening p2pfile.");
+        }
+        this.channel = file.getChannel();
+        this.windows = new AtomicReferenceArray<MappedByteBuffer>((int)((dataSize + windowSize - 1) / windowSize));
         if(hasFile) initializeFilePieces();
     }
 
@@ -36,64 +75,193 @@ public class P2PFile {
         }
     }
 
-    //created the filepieces data maps and initializes a new one to 0 if no file at all
-    private void initializeFilePieces() throws IOException {
-        File file = new File(filePath);
-        if (!file.exists()) {
-            createEmptyFile(file);
+    //marks every piece backed by the seed file as available; data is only read when a piece is served
+    private void initializeFilePieces() {
+        int count = (int)((dataSize + pieceSize - 1) / pieceSize);
+        pieceAvailability.set(0, count);
+    }
+
+    //maps the window holding the given piece on first use. Only mapping takes the lock, so once a window is
+    //mapped readers and writers of different pieces never wait on each other
+    private MappedByteBuffer window(int pieceIndex) throws IOException {
+        int w = (int)(pieceOffset(pieceIndex) / windowSize);
+        MappedByteBuffer window = windows.get(w);
+        if (window != null) {
+            return window;
         }
-        try (FileInputStream fileInputStream = new FileInputStream(filePath)) {
-            int index = 0;
-            byte[] temp = new byte[(int)pieceSize];
-            int bytesRead;
-            while ((bytesRead = fileInputStream.read(temp)) != -1) {
-                byte[] actualData = Arrays.copyOf(temp, bytesRead);
-                pieces.put(index, actualData);
-                pieceAvailability.set(index);
-                temp = new byte[(int)pieceSize];
-                index++;
+        synchronized (windows) {
+            window = windows.get(w);
+            if (window == null) {
+                long position = w * windowSize;
+                window = channel.map(mapMode, position, Math.min(windowSize, dataSize - position));
+                windows.set(w, window);
             }
-        } catch (IOException e) {
-            throw new IOException("Error reading p2pfile data.");
+            return window;
         }
     }
 
-    //writes a piece to the file
-    public synchronized void writePiece(int pieceIndex, byte[] pieceData, int id) throws IOException {
-        synchronized (this) {
-            int offset = pieceIndex * (int)pieceSize;
-            try (RandomAccessFile file = new RandomAccessFile(filePath, "rw")) {
-                file.seek(offset);
-                file.write(pieceData);
-                pieces.put(pieceIndex, pieceData);
-                pieceAvailability.set(pieceIndex);
-            } catch (IOException e) {
-                System.out.println(pieceIndex);
-                System.out.println(pieceData);
-                System.out.println(pieceData.length);
-                System.out.println("Received from " + id);
-                e.printStackTrace();
-                throw new IOException("Error writing p2pfile data.");
-            }
+    //flushes completed pieces to disk in the background, waiting interval milliseconds to gather more pieces
+    //for each flush. Without it, written pieces reach the disk when the OS writes them back or on close
+    public void startSync(long interval, String threadName) {
+        if (mapMode == FileChannel.MapMode.READ_WRITE) {
+            syncer = new DiskSyncer(this::forcePieces, interval, threadName);
+        }
+    }
+
+    //forces count pieces starting at firstPiece to disk, one force call per mapping they are in
+    private void forcePieces(int firstPiece, int count) throws IOException {
+        int piecesPerWindow = (int)(windowSize / pieceSize);
+        int end = firstPiece + count;
+        for (int piece = firstPiece; piece < end; ) {
+            int windowEnd = Math.min(end, (piece / piecesPerWindow + 1) * piecesPerWindow);
+            int offset = (int)(pieceOffset(piece) % windowSize);
+            long length = pieceOffset(windowEnd - 1) + pieceLength(windowEnd - 1) - pieceOffset(piece);
+            window(piece).force(offset, (int)length);
+            piece = windowEnd;
+        }
+    }
+
+    public DiskSyncer syncer() {
+        return syncer;
+    }
+
+    public int getPieceCount() {
+        return pieceAvailability.size();
+    }
+
+    public int getPiecesStored() {
+        return pieceAvailability.cardinality();
+    }
+
+    public String getDuplicateBlockBuffers() {
+        return scratch.toString();
+    }
+
+    public long getFlushes() {
+        return syncer != null ? syncer.flushes() : 0;
+    }
+
+    public LatencyHistogram.Snapshot getFlushLatency() {
+        return (syncer != null ? syncer.flushLatency() : new LatencyHistogram()).snapshot();
+    }
+
+    private long pieceOffset(int pieceIndex) {
+        return pieceIndex * pieceSize;
+    }
+
+    public int pieceLength(int pieceIndex) {
+        return (int)Math.min(pieceSize, dataSize - pieceOffset(pieceIndex));
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    public int blocksPerPiece() {
+        return blocksPerPiece;
+    }
+
+    //number of blocks in a piece; the last piece may have fewer
+    public int blockCount(int pieceIndex) {
+        return (pieceLength(pieceIndex) + blockSize - 1) / blockSize;
+    }
+
+    //block ids number every block in the file: piece * blocksPerPiece + begin / blockSize
+    public int blockId(int pieceIndex, int begin) {
+        return pieceIndex * blocksPerPiece + begin / blockSize;
+    }
+
+    public int blockPiece(int blockId) {
+        return blockId / blocksPerPiece;
+    }
+
+    public int blockBegin(int blockId) {
+        return (blockId % blocksPerPiece) * blockSize;
+    }
+
+    public int blockLength(int pieceIndex, int begin) {
+        return Math.min(blockSize, pieceLength(pieceIndex) - begin);
+    }
+
+    //returns the mapped region a block of the given length is written into
+    public ByteBuffer blockRegion(int pieceIndex, int begin, int length) throws IOException {
+        if (pieceIndex < 0 || pieceOffset(pieceIndex) >= dataSize || begin < 0 || begin % blockSize != 0
+                || begin >= pieceLength(pieceIndex) || length != blockLength(pieceIndex, begin)) {
+            throw new IOException("Block " + pieceIndex + ":" + begin + " has invalid length " + length);
+        }
+        return window(pieceIndex).slice((int)(pieceOffset(pieceIndex) % windowSize) + begin, length);
+    }
+
+    //returns where an arriving block is read to. A block that is already stored (a duplicate reply to an endgame
+    //request) is read into a pooled scratch buffer and dropped. Pass the target to releaseTarget once it is read
+    public ByteBuffer blockTarget(int pieceIndex, int begin, int length) throws IOException {
+        ByteBuffer region = blockRegion(pieceIndex, begin, length);
+        return hasBlock(blockId(pieceIndex, begin)) ? scratch.acquire(length) : region;
+    }
+
+    //hands a scratch buffer from blockTarget back to the pool; file regions are left alone
+    public void releaseTarget(ByteBuffer target) {
+        scratch.release(target);
+    }
+
+    public BufferPool scratchPool() {
+        return scratch;
+    }
+
+    //marks a block stored once all of its bytes are in its region. Returns true if this completed the piece.
+    //Lock-free: when the last blocks of a piece arrive on several threads at once, all of them may find the
+    //piece complete, but only the one that sets its availability bit reports it
+    public boolean blockStored(int pieceIndex, int begin) {
+        if (pieceAvailability.get(pieceIndex)) {
+            return false;
+        }
+        int first = blockId(pieceIndex, 0);
+        int end = first + blockCount(pieceIndex);
+        blocksReceived.set(blockId(pieceIndex, begin));
+        if (blocksReceived.nextClearBit(first) < end || !pieceAvailability.set(pieceIndex)) {
+            return false;
+        }
+        if (syncer != null) {
+            syncer.pieceCompleted(pieceIndex);
         }
+        return true;
     }
 
+    public boolean hasBlock(int blockId) {
+        return pieceAvailability.get(blockPiece(blockId)) || blocksReceived.get(blockId);
+    }
 
-    public byte[] getPiece(int pieceIndex) {
-        byte[] piece = pieces.get(pieceIndex);
-        if (piece == null) {
-            System.out.println("Piece " + pieceIndex + " was requested from this machine but we do not have it. This should not happen");
-            return Util.intToFourBytes(pieceIndex); // Returning just the piece index
+    //copies part of a piece from the file to the target channel without passing through the heap
+    public void transferBlock(int pieceIndex, int begin, int length, WritableByteChannel target) throws IOException {
+        int sent = 0;
+        while (sent < length) {
+            sent += transferPiece(pieceIndex, begin + sent, length - sent, target);
         }
-        byte[] fullMessage = new byte[4 + piece.length];
-        byte[] byteIndex = Util.intToFourBytes(pieceIndex);
-        System.arraycopy(byteIndex, 0, fullMessage, 0, 4);
-        System.arraycopy(piece, 0, fullMessage, 4, piece.length);
-        return fullMessage;
+    }
+
+    //transfers part of a piece, returning how many bytes the target accepted (may be fewer on a non-blocking channel)
+    public long transferPiece(int pieceIndex, int offset, int count, WritableByteChannel target) throws IOException {
+        return channel.transferTo(pieceOffset(pieceIndex) + offset, count, target);
     }
 
     public boolean hasPiece(int pieceIndex) {
         return pieceAvailability.get(pieceIndex);
     }
 
+    //flushes written pieces and releases the file handle
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.close();
+        }
+        if (mapMode == FileChannel.MapMode.READ_WRITE) {
+            synchronized (windows) {
+                for (int i = 0; i < windows.length(); i++) {
+                    MappedByteBuffer w = windows.get(i);
+                    if (w != null) w.force();
+                }
+            }
+        }
+        file.close();
+    }
+
 }
@@ -0,0 +1,11 @@
+package src;
+
+// Storage figures of one peer's file, registered as src:type=P2PFile,peer=<peer id>
+public interface P2PFileMXBean {
+    int getPieceCount();
+    int getPiecesStored();
+    String getDuplicateBlockBuffers();
+    // Batched flushes to disk; zero unless SyncPolicy is batch
+    long getFlushes();
+    LatencyHistogram.Snapshot getFlushLatency();
+}
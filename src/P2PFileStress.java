@@ -0,0 +1,183 @@
+package src;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Stress test for P2PFile's lock-free piece store. Writer threads store every block of a file in their own random
+// order, so each block arrives several times at once, the way endgame duplicates do. Reader threads meanwhile serve
+// any piece that hasPiece reports, as an upload would. Fails if a piece is reported complete more or less than once,
+// if a published piece is read with bytes missing, or if the file is wrong at the end.
+// Usage: java -cp bin src.P2PFileStress [writers] [readers] [pieces]
+public class P2PFileStress {
+
+    private static final int PIECE_SIZE = 64 * 1024;
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    private static byte expected(long offset) {
+        return (byte) (offset * 31 + (offset >>> 11));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int pieces = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+        long fileSize = (long) pieces * PIECE_SIZE - PIECE_SIZE / 3; // A short last piece
+        File path = File.createTempFile("p2pfile-stress", ".bin");
+        path.deleteOnExit();
+
+        P2PFile file = new P2PFile(path.getPath(), fileSize, PIECE_SIZE, BLOCK_SIZE, 8, false);
+        int blocks = pieces * file.blocksPerPiece();
+        AtomicIntegerArray completions = new AtomicIntegerArray(pieces);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicLong pieceReads = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] writerThreads = new Thread[writers];
+        for (int t = 0; t < writers; t++) {
+            long seed = t;
+            writerThreads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                    int[] order = shuffledBlocks(blocks, new SplittableRandom(seed));
+                    for (int block : order) {
+                        int pieceIndex = file.blockPiece(block);
+                        int begin = file.blockBegin(block);
+                        if (begin >= file.pieceLength(pieceIndex)) {
+                            continue; // Past the end of the short last piece
+                        }
+                        int length = file.blockLength(pieceIndex, begin);
+                        ByteBuffer target = file.blockTarget(pieceIndex, begin, length);
+                        long offset = (long) pieceIndex * PIECE_SIZE + begin;
+                        for (int i = 0; i < length; i++) {
+                            target.put(expected(offset + i));
+                        }
+                        file.releaseTarget(target);
+                        if (file.blockStored(pieceIndex, begin)) {
+                            completions.incrementAndGet(pieceIndex);
+                        }
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    failures.incrementAndGet();
+                }
+            }, "writer-" + t);
+        }
+
+        Thread[] readerThreads = new Thread[readers];
+        for (int t = 0; t < readers; t++) {
+            long seed = 1000 + t;
+            readerThreads[t] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(PIECE_SIZE);
+                WritableByteChannel sink = Channels.newChannel(bytes);
+                try {
+                    start.await();
+                    while (writing.get()) {
+                        int pieceIndex = random.nextInt(pieces);
+                        if (!file.hasPiece(pieceIndex)) {
+                            continue;
+                        }
+                        // A published piece must have every block stored and every byte readable
+                        int length = file.pieceLength(pieceIndex);
+                        for (int b = 0; b < file.blockCount(pieceIndex); b++) {
+                            if (!file.hasBlock(file.blockId(pieceIndex, 0) + b)) {
+                                System.out.println("Piece " + pieceIndex + " is published without block " + b);
+                                failures.incrementAndGet();
+                            }
+                        }
+                        bytes.reset();
+                        file.transferBlock(pieceIndex, 0, length, sink);
+                        if (!matches(bytes.toByteArray(), (long) pieceIndex * PIECE_SIZE)) {
+                            System.out.println("Piece " + pieceIndex + " is published with wrong bytes");
+                            failures.incrementAndGet();
+                        }
+                        pieceReads.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    failures.incrementAndGet();
+                }
+            }, "reader-" + t);
+        }
+
+        for (Thread t : writerThreads) {
+            t.start();
+        }
+        for (Thread t : readerThreads) {
+            t.start();
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for (Thread t : writerThreads) {
+            t.join();
+        }
+        long millis = (System.nanoTime() - started) / 1_000_000;
+        writing.set(false);
+        for (Thread t : readerThreads) {
+            t.join();
+        }
+
+        for (int p = 0; p < pieces; p++) {
+            if (completions.get(p) != 1) {
+                System.out.println("Piece " + p + " was reported complete " + completions.get(p) + " times");
+                failures.incrementAndGet();
+            }
+        }
+        if (file.getPiecesStored() != pieces) {
+            System.out.println(file.getPiecesStored() + " of " + pieces + " pieces are stored");
+            failures.incrementAndGet();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(PIECE_SIZE);
+        WritableByteChannel sink = Channels.newChannel(bytes);
+        for (int p = 0; p < pieces; p++) {
+            bytes.reset();
+            file.transferBlock(p, 0, file.pieceLength(p), sink);
+            if (!matches(bytes.toByteArray(), (long) p * PIECE_SIZE)) {
+                System.out.println("Piece " + p + " is wrong after all writers finished");
+                failures.incrementAndGet();
+            }
+        }
+        String duplicates = file.getDuplicateBlockBuffers();
+        file.close();
+
+        System.out.println(writers + " writers stored " + blocks + " blocks each in " + millis + " ms while "
+                + readers + " readers checked " + pieceReads.get() + " published pieces");
+        System.out.println("Duplicate block buffers: " + duplicates);
+        System.out.println(failures.get() == 0 ? "OK" : "FAILED with " + failures.get() + " errors");
+        if (failures.get() != 0) {
+            System.exit(1);
+        }
+    }
+
+    private static int[] shuffledBlocks(int blocks, SplittableRandom random) {
+        int[] order = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            order[i] = i;
+        }
+        for (int i = blocks - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        return order;
+    }
+
+    private static boolean matches(byte[] data, long offset) {
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != expected(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
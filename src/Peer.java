@@ -1,23 +1,51 @@
 package src;
 
 import java.io.*;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class Peer {
+public class Peer implements PeerMXBean {
+
+    private static final byte[] HANDSHAKE_HEADER = "P2PFILESHARINGPROJ".getBytes(StandardCharsets.US_ASCII);
+    private static final int HANDSHAKE_LENGTH = 32; // Header, 10 zero bytes and the 4-byte peer ID
+    private static final long CONNECT_BACKOFF = 250; // Milliseconds before the first retry of a failed connection
+    private static final long MAX_CONNECT_BACKOFF = 4000;
 
     private volatile int id;
-    private volatile BitSet bitfield;
-    private volatile BitSet requested;
-    private volatile ArrayList <Neighbor> neighbors;
+    private final ConcurrentBitSet bitfield; // Our pieces; read without a lock by every neighbor's threads
+    private volatile BitSet requested; // Block ids with a request in flight
+    private final List<Neighbor> neighbors; // Copy-on-write: iterated on every HAVE, added to by concurrent connection tasks
     private volatile HashSet <Neighbor> unchokedNeighbors;
     private volatile HashSet <Neighbor> chokedNeighbors;
-    private volatile int countFinishedNeighbors;
+    private final AtomicInteger nextNeighborIndex;
+    private final PreferredRanking<Neighbor> ranking; // The rest of the unchoke round state, only used by the scheduler thread
+    private final AtomicInteger countFinishedNeighbors; // Incremented from every neighbor's responder
+    private final AtomicInteger droppedNeighbors; // Dropped before they finished; shutdown no longer waits for them
     private volatile int numNeighbors;
     private int maxConnections;
     private volatile long unchokeInterval;
@@ -31,63 +59,223 @@ public class Peer {
     private volatile boolean finished;
     private volatile boolean listening;
     private volatile P2PFile p2pFile;
-    private volatile Thread welcomeThread;
-    private volatile Thread timerThread;
-    private volatile long lastUnchoke;
-    private volatile long lastOptimisticUnchoke;
+    private volatile Future<?> welcomeThread;
+    private final ScheduledExecutorService scheduler; // Runs the unchoke and optimistic unchoke rounds
+    private final ExecutorService executor; // Runs the neighbor, welcome, connection and timer tasks
+    private final RoundStats unchokeStats;
+    private final RoundStats optimisticUnchokeStats;
     public volatile Neighbor optimisticUnchokedNeighbor;
     public volatile Log logObj;
     public Lock chokeLock;
-
-    public class Neighbor {
+    private Lock requestLock; // Guards requested, availability, neighbor bitfields and outstanding/abandoned requests
+    private AvailabilityIndex availability; // Copies of each piece across neighbors, for rarest-first selection
+    private int pipelineDepth; // Requests kept in flight per neighbor
+    private boolean blockMode; // Pieces are split into blocks, and REQUEST/PIECE carry a begin offset
+    private int endgameThreshold; // Missing pieces at or below which in-flight blocks are also requested from other neighbors
+    private final HashMap<String, String> options; // Optional Common.cfg settings
+    private volatile NioTransport transport; // Set when TransportMode is nio
+    private final AtomicBoolean shutdownStarted;
+    private boolean binaryHandshake; // Handshake directly on the welcome connection instead of the two-phase setup
+    private int connectTimeout; // Milliseconds a connection attempt to a neighbor may take
+    private int connectAttempts;
+    private int acceptTimeout; // Milliseconds later peers have to connect to us before they are given up on
+    private final AtomicInteger awaitedDialIns; // Later peers that have yet to connect, -1 once acceptTimeout passed
+    private volatile ScheduledFuture<?> acceptDeadline;
+    private final long startTime;
+    private final AtomicBoolean fullyConnectedReported;
+    private int outboundQueueSize; // Frames queued per neighbor at most
+    private long outboundStallTimeout; // Milliseconds a sender waits on a full queue before the neighbor is disconnected
+    private long coalesceDelay; // Nanoseconds a writer thread waits for more messages to send along with the first
+    private final RateMeter downloaded; // Piece data from all neighbors together
+    private final RateMeter uploaded;
+    private final LatencyHistogram requestLatency; // Request to PIECE reply with data, across all neighbors
+    private TokenBucket uploadLimit; // Shared by all neighbors, null when uploads are not limited
+    private TokenBucket downloadLimit;
+
+    public class Neighbor implements FrameDecoder.Handler, NeighborMXBean, PreferredRanking.Candidate {
         public volatile int id;
         public volatile String address;
         public volatile int welcomePort;
         public volatile int packetCount;
-        public volatile BitSet bitfield;
+        public final ConcurrentBitSet bitfield;
         public volatile int numPieces;
         public volatile boolean finished;
+        public final AtomicBoolean settled; // Set once the neighbor is counted as finished or dropped, so it is counted once
+        public final AtomicBoolean dropped;
         public volatile Socket connection;
+        public volatile SocketChannel channel;
         public volatile boolean  interestedInPeer; // Is neighbor interested in Peer's pieces
         public volatile boolean  interestedInNeighbor; // Is Peer interested in neighbor's pieces
         public volatile boolean chokingPeer; // Is Peer choked by neighbor
-        public volatile HashSet<Integer> piecesForPeer; // Track pieces neighbor has that peer does not have
-        public volatile boolean waitingForPiece;
-        public volatile int piecesInInterval;
-        public volatile Thread responderThread;
-        public volatile Thread initiatorThread;
-        public Lock writeLock;
-        public Lock piecesForPeerLock;
-        public boolean listening;
+        public final ConcurrentBitSet piecesForPeer; // Track pieces neighbor has that peer does not have
+        public HashSet<Integer> outstandingRequests; // Requested block ids we still expect a PIECE reply for, guarded by requestLock
+        public HashSet<Integer> abandonedRequests; // Outstanding when the neighbor choked us; released to other neighbors
+        public final RateMeter downloadRate; // Piece data received from the neighbor
+        public final RateMeter uploadRate; // Piece data sent to the neighbor
+        public final LongAdder piecesDownloaded; // Pieces the neighbor sent the last missing block of
+        public final LongAdder piecesUploaded; // Pieces whose last block we finished sending to the neighbor
+        public final RequestTimes requestTimes; // When outstanding requests were sent, guarded by requestLock
+        public final LatencyHistogram requestLatency; // Request to PIECE reply with data
+        public final Throttle uploadThrottle; // Bandwidth limits on what is written to the neighbor
+        public final Throttle downloadThrottle; // Bandwidth limits on what is read from the neighbor
+        public final int index; // Numbers neighbors from 0 in the order they connected
+        public volatile boolean unchoked; // Whether we unchoked the neighbor; set under chokeLock, read by REQUEST handling
+        public volatile Future<?> responderThread;
+        public volatile Future<?> initiatorThread;
+        public volatile Future<?> writerThread;
+        public volatile NioTransport.Connection nioConnection;
+        public final OutboundQueue outbound; // Every frame to the neighbor goes through here, so senders never write to the socket
+        public final FrameWriter frameWriter; // Used by the writer thread or the selector loop that drains outbound
+        public final FrameDecoder decoder; // Used by the responder thread or the neighbor's selector loop
+        public Lock interestLock; // Serializes interest checks, so INTERESTED and NOT_INTERESTED go out in order
+        public Lock wakeLock;
+        public Condition wakeCondition; // Signalled when the initiator may be able to request more
+        public boolean wakePending; // Guarded by wakeLock, so a signal sent while the initiator is busy is not lost
+        public volatile boolean listening; // Cleared by the responder or disconnect, read by the neighbor's other threads
 
         public Neighbor(int id, Socket connection_) throws IOException, ClassNotFoundException {
             this.id = id;
-            this.bitfield = new BitSet(totalPieces);
-            this.bitfield.set(0, bitfield.size(), false); // Assume other peers have nothing until bitfield is sent
+            this.index = nextNeighborIndex.getAndIncrement();
+            this.bitfield = new ConcurrentBitSet(totalPieces); // Assume other peers have nothing until bitfield is sent
             this.finished = false;
+            this.settled = new AtomicBoolean(false);
+            this.dropped = new AtomicBoolean(false);
             this.connection = connection_;
+            this.channel = connection_.getChannel();
             this.interestedInPeer = false;
             this.interestedInNeighbor = false;
             this.chokingPeer = true; // Default to choking
             this.packetCount = 0;
-            this.piecesForPeer = new HashSet<Integer>();
-            this.waitingForPiece = false;
-            this.piecesInInterval = 0;
+            this.piecesForPeer = new ConcurrentBitSet(totalPieces);
+            this.outstandingRequests = new HashSet<Integer>();
+            this.abandonedRequests = new HashSet<Integer>();
+            this.downloadRate = new RateMeter(downloaded);
+            this.uploadRate = new RateMeter(uploaded);
+            this.piecesDownloaded = new LongAdder();
+            this.piecesUploaded = new LongAdder();
+            this.requestTimes = new RequestTimes(pipelineDepth);
+            this.requestLatency = new LatencyHistogram();
+            this.uploadThrottle = new Throttle(tokenBucket("NeighborUploadLimit"), uploadLimit);
+            this.downloadThrottle = new Throttle(tokenBucket("NeighborDownloadLimit"), downloadLimit);
             this.numPieces = 0;
-            this.writeLock = new ReentrantLock();
-            this.piecesForPeerLock = new ReentrantLock();
+            this.outbound = new OutboundQueue(outboundQueueSize);
+            this.frameWriter = new FrameWriter(p2pFile, uploadRate, piecesUploaded, uploadThrottle);
+            this.decoder = new FrameDecoder(this, blockMode);
+            // Small messages are already batched by the writer, so the kernel should not hold them back as well
+            connection_.setTcpNoDelay(true);
+            this.interestLock = new ReentrantLock();
+            this.wakeLock = new ReentrantLock();
+            this.wakeCondition = wakeLock.newCondition();
+            this.wakePending = false;
             this.listening = true;
+            Util.registerMBean(this, "src:type=Neighbor,peer=" + Peer.this.id + ",id=" + id);
+        }
+
+        public void onMessage(int type, ByteBuffer payload) throws IOException {
+            handleMessage(this, type, payload);
+        }
+
+        public ByteBuffer pieceTarget(int pieceIndex, int begin, int length) throws IOException {
+            return p2pFile.blockTarget(pieceIndex, begin, length);
+        }
+
+        public void onPiece(int pieceIndex, int begin, ByteBuffer data) throws IOException {
+            if (data != null) {
+                downloadRate.add(data.position());
+                p2pFile.releaseTarget(data); // The data is in the file by now, or was a duplicate to drop
+            }
+            handlePiece(this, pieceIndex, begin, data != null);
+        }
+
+        public int getNeighborId() {
+            return id;
+        }
+
+        public RateMeter downloadMeter() {
+            return downloadRate;
+        }
+
+        public RateMeter uploadMeter() {
+            return uploadRate;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        public int getPieces() {
+            return numPieces;
+        }
+
+        public long getBytesDownloaded() {
+            return downloadRate.total();
+        }
+
+        public long getBytesUploaded() {
+            return uploadRate.total();
+        }
+
+        public long getPiecesDownloaded() {
+            return piecesDownloaded.sum();
+        }
+
+        public long getPiecesUploaded() {
+            return piecesUploaded.sum();
+        }
+
+        public long getDownloadRate() {
+            return downloadRate.rate();
+        }
+
+        public long getUploadRate() {
+            return uploadRate.rate();
+        }
+
+        public boolean isUnchoked() {
+            return unchoked;
+        }
+
+        public boolean isChokingUs() {
+            return chokingPeer;
+        }
+
+        public boolean isInterestedInUs() {
+            return interestedInPeer;
+        }
+
+        public boolean isInteresting() {
+            return interestedInNeighbor;
+        }
+
+        public int getOutstandingRequests() {
+            requestLock.lock();
+            try {
+                return outstandingRequests.size();
+            } finally {
+                requestLock.unlock();
+            }
+        }
+
+        public int getOutboundQueueDepth() {
+            return outbound.depth();
+        }
+
+        public LatencyHistogram.Snapshot getRequestLatency() {
+            return requestLatency.snapshot();
         }
     }
 
     public Peer(int id_, int numNeighbors, int maxConnections_, long unchokingInterval_,
                 long optimisticUnchokingInterval_, String fileName_,
-                long fileSize_, long pieceSize_, int welcomePort_, boolean hasFile_, Vector<NeighborInfo> neighborInfo)
+                long fileSize_, long pieceSize_, int welcomePort_, boolean hasFile_, Vector<NeighborInfo> neighborInfo,
+                HashMap<String, String> options_)
                 throws  Exception {
         this.id = id_;
+        this.startTime = System.nanoTime();
+        this.options = options_;
         this.numNeighbors = numNeighbors;
-        this.logObj = new Log(this.id);
-        this.neighbors = new ArrayList<Neighbor>();
+        this.logObj = new Log(this.id, option("LogQueueSize", 8192), option("LogFullPolicy", "block").equalsIgnoreCase("block"));
+        this.neighbors = new CopyOnWriteArrayList<Neighbor>();
         this.unchokedNeighbors = new HashSet<Neighbor>();
         this.chokedNeighbors = new  HashSet <Neighbor>();
         this.maxConnections = maxConnections_;
@@ -96,37 +284,185 @@ public class Peer {
         this.fileName = fileName_;
         this.fileSize = fileSize_;
         this.pieceSize = pieceSize_;
-        this.totalPieces = (int)(fileSize_ / pieceSize);
-        if (fileSize_ % pieceSize > 0) {
-            this.totalPieces++;
-        }
-        this.welcomeSocket = new ServerSocket(welcomePort_);
+        this.totalPieces = (int)((fileSize_ + pieceSize - 1) / pieceSize);
+        this.binaryHandshake = option("HandshakeMode", "legacy").equalsIgnoreCase("binary");
+        this.connectTimeout = option("ConnectTimeout", 5000);
+        this.connectAttempts = Math.max(1, option("ConnectAttempts", 5));
+        this.acceptTimeout = option("AcceptTimeout", (int) dialWindow());
+        this.awaitedDialIns = new AtomicInteger(numNeighbors - neighborInfo.size());
+        this.outboundQueueSize = option("OutboundQueueSize", 1024);
+        this.outboundStallTimeout = option("OutboundStallTimeout", 10000);
+        this.coalesceDelay = TimeUnit.MICROSECONDS.toNanos(option("CoalesceDelay", 0));
+        this.downloaded = new RateMeter();
+        this.uploaded = new RateMeter();
+        this.requestLatency = new LatencyHistogram();
+        this.uploadLimit = tokenBucket("UploadLimit");
+        this.downloadLimit = tokenBucket("DownloadLimit");
+        this.fullyConnectedReported = new AtomicBoolean(numNeighbors == 0);
+        // Channel-backed so neighbors accepted on it with the binary handshake support transferTo
+        this.welcomeSocket = ServerSocketChannel.open().bind(new InetSocketAddress(welcomePort_)).socket();
         this.listening = true;
-        this.bitfield = new BitSet(totalPieces);
-        this.requested = new BitSet(totalPieces);
+        this.bitfield = new ConcurrentBitSet(totalPieces);
+        this.requested = new BitSet();
         // If peer has the file set bits for all pieces to true
         if (hasFile_) {
-            this.bitfield.set(0, totalPieces, true);
+            this.bitfield.set(0, totalPieces);
             this.numPieces = totalPieces;
             this.finished = true;
         }
         this.chokeLock = new ReentrantLock();
-
-        this.p2pFile = new P2PFile("Config/" + id + "/" + fileName_, fileSize, pieceSize,hasFile_);
+        this.requestLock = new ReentrantLock();
+        this.availability = new AvailabilityIndex(totalPieces, bitfield);
+        this.pipelineDepth = Math.max(1, option("RequestPipelineDepth", 5));
+        this.endgameThreshold = option("EndgameThreshold", 4);
+        this.shutdownStarted = new AtomicBoolean(false);
+        this.countFinishedNeighbors = new AtomicInteger(0);
+        this.droppedNeighbors = new AtomicInteger(0);
+        this.nextNeighborIndex = new AtomicInteger(0);
+        this.ranking = new PreferredRanking<Neighbor>();
+        ThreadFactory threadFactory = createThreadFactory(option("ThreadMode", "platform"));
+        this.executor = Executors.newCachedThreadPool(threadFactory);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.unchokeStats = new RoundStats();
+        this.optimisticUnchokeStats = new RoundStats();
+
+        this.p2pFile = new P2PFile("Config/" + id + "/" + fileName_, fileSize, pieceSize, option("BlockSize", 0),
+                option("ScratchBuffers", 8), hasFile_);
+        this.blockMode = p2pFile.blocksPerPiece() > 1;
+        if (option("SyncPolicy", "close").equalsIgnoreCase("batch")) {
+            p2pFile.startSync(option("SyncInterval", 0), "disk-sync-" + id);
+        }
+        if (option("TransportMode", "blocking").equalsIgnoreCase("nio")) {
+            this.transport = new NioTransport(this, p2pFile, option("SelectorThreads", 1));
+        }
+        Util.registerMBean(this, "src:type=Peer,id=" + id);
+        Util.registerMBean(p2pFile, "src:type=P2PFile,peer=" + id);
         createWelcomeThread();
         connectToNeighbors(neighborInfo);
-        createTimerThread();
+        scheduleChokeRounds();
+        scheduleAcceptDeadline();
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    // A token bucket for the limit in KB/s set by the option, or null if it is not set. It holds LimitBurst KB
+    private TokenBucket tokenBucket(String name) {
+        int limit = option(name, 0);
+        return limit > 0 ? new TokenBucket(limit * 1024L, option("LimitBurst", 64) * 1024L) : null;
+    }
+
+    private int option(String name, int defaultValue) {
+        String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    // Virtual threads need Java 21; older runtimes fall back to platform threads
+    private ThreadFactory createThreadFactory(String threadMode) {
+        if (threadMode.equalsIgnoreCase("virtual")) {
+            ThreadFactory factory = Util.virtualThreadFactory();
+            if (factory != null) {
+                return factory;
+            }
+            System.out.println("Virtual threads are not available on this Java runtime, using platform threads");
+        }
+        return Executors.defaultThreadFactory();
+    }
+
+    public int getPeerId() {
+        return id;
+    }
+
+    public int getPieces() {
+        return numPieces;
+    }
+
+    public int getTotalPieces() {
+        return totalPieces;
+    }
+
+    public double getCompletionPercent() {
+        return totalPieces > 0 ? 100.0 * numPieces / totalPieces : 100.0;
+    }
+
+    public long getEtaSeconds() {
+        long remaining = fileSize - Math.min(fileSize, (long) numPieces * pieceSize);
+        if (remaining == 0) {
+            return 0;
+        }
+        long rate = downloaded.rate();
+        return rate > 0 ? (remaining + rate - 1) / rate : -1;
+    }
+
+    public long getBytesDownloaded() {
+        return downloaded.total();
+    }
+
+    public long getBytesUploaded() {
+        return uploaded.total();
+    }
+
+    public long getDownloadRate() {
+        return downloaded.rate();
+    }
+
+    public long getUploadRate() {
+        return uploaded.rate();
+    }
+
+    public int getNeighborCount() {
+        return neighbors.size();
+    }
+
+    public int getUnchokedNeighborCount() {
+        int count = 0;
+        for (Neighbor n : neighbors) {
+            if (n.unchoked) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getOutstandingRequests() {
+        requestLock.lock();
+        try {
+            int count = 0;
+            for (Neighbor n : neighbors) {
+                count += n.outstandingRequests.size();
+            }
+            return count;
+        } finally {
+            requestLock.unlock();
+        }
+    }
+
+    public LatencyHistogram.Snapshot getRequestLatency() {
+        return requestLatency.snapshot();
     }
 
     private Socket connectToServer(NeighborInfo neighborInfo) throws Exception {
-        Socket tempSocket = new Socket(neighborInfo.name, neighborInfo.port);
-        ObjectOutputStream out = new ObjectOutputStream(tempSocket.getOutputStream());
-        out.flush();
-        ObjectInputStream in = new ObjectInputStream(tempSocket.getInputStream());
-        int portNumber = (int)in.readObject();
-        tempSocket.close();
-        Socket newSocket = new Socket(neighborInfo.name, portNumber);
-        handShakeClient(newSocket);
+        Socket newSocket;
+        if (binaryHandshake) {
+            newSocket = openSocket(neighborInfo.name, neighborInfo.port);
+            writeHandshake(newSocket.getChannel());
+            int neighborId = readHandshake(newSocket.getChannel());
+            if (neighborId != neighborInfo.id) {
+                throw new Exception("Expected peer " + neighborInfo.id + " but peer " + neighborId + " answered the handshake");
+            }
+        }
+        else {
+            Socket tempSocket = new Socket();
+            tempSocket.connect(new InetSocketAddress(neighborInfo.name, neighborInfo.port), connectTimeout);
+            ObjectOutputStream out = new ObjectOutputStream(tempSocket.getOutputStream());
+            out.flush();
+            ObjectInputStream in = new ObjectInputStream(tempSocket.getInputStream());
+            int portNumber = (int)in.readObject();
+            tempSocket.close();
+            newSocket = openSocket(neighborInfo.name, portNumber);
+            handShakeClient(newSocket);
+        }
         Neighbor n = new Neighbor(neighborInfo.id, newSocket);
         chokeLock.lock();
         this.neighbors.add(n);
@@ -138,6 +474,7 @@ public class Peer {
         createNeighborThreads(n);
         sendBitfield(n);
         logObj.logConnectedTo(this.id, n.id);
+        neighborConnected();
         return newSocket;
     }
 
@@ -155,6 +492,16 @@ public class Peer {
 
 
         int id = handShakeServer(connection);
+        acceptNeighbor(connection, id);
+    }
+
+    // Sets up a neighbor that connected to us once its handshake is done
+    private void acceptNeighbor(Socket connection, int id) throws Exception {
+        if (!expectDialIn()) {
+            System.out.println("Peer " + this.id + " refused peer " + id + ", which connected after AcceptTimeout");
+            connection.close();
+            return;
+        }
         Neighbor n = new Neighbor(id, connection);
         logObj.logConnectedFrom(this.id, n.id);
         neighbors.add(n);
@@ -166,6 +513,7 @@ public class Peer {
         }
         createNeighborThreads(n);
         sendBitfield(n);
+        neighborConnected();
     }
 
     private void listenForNewNeighbor() throws Exception {
@@ -177,29 +525,22 @@ public class Peer {
                     return;
                 }
 
-                ServerSocket s = new ServerSocket(0);
-
-                //Start listening on new server socket
-                Thread connectionThread = new Thread(() -> {
+                // Handshakes run on their own tasks, so a slow or broken neighbor does not hold up the others
+                executor.submit(() -> {
                     try {
-                        this.connectToClient(s);
+                        this.welcomeNeighbor(connection);
                     } catch (Exception e) {
-                        e.printStackTrace();
+                        e.printStackTrace(); // A failed setup only loses that connection
+                        try {
+                            connection.close();
+                        } catch (IOException closeError) {
+                            // Already closed
+                        }
                     }
                 });
-                connectionThread.start();
-
-                int port = s.getLocalPort();
-                ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
-                out.flush();
-                ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
-                out.writeObject(port); // write port number through welcome socket connection
-                out.flush();
-                connectionThread.join();
-
             }
         }
-        catch (SocketException e) {
+        catch (SocketException | ClosedChannelException e) { // The channel-backed welcome socket throws the latter when closed
             if (!this.listening) {
                 return;
             }
@@ -212,9 +553,134 @@ public class Peer {
         }
     }
 
+    // Sets up a neighbor that connected to the welcome socket
+    private void welcomeNeighbor(Socket connection) throws Exception {
+        if (binaryHandshake) {
+            int neighborId = readHandshake(connection.getChannel());
+            writeHandshake(connection.getChannel());
+            acceptNeighbor(connection, neighborId);
+            return;
+        }
+        ServerSocket s = ServerSocketChannel.open().bind(null).socket(); // Channel-backed so accepted sockets support transferTo
+        int port = s.getLocalPort();
+        ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
+        out.flush();
+        ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
+        out.writeObject(port); // write port number through welcome socket connection
+        out.flush();
+        this.connectToClient(s); // The neighbor's connection waits in the backlog until it is accepted
+    }
+
+    // Dials every earlier peer at once, so an unreachable peer only delays its own connection
     public void connectToNeighbors(Vector<NeighborInfo> neighborInfo) throws Exception {
         for (int i=0; i<neighborInfo.size(); i++) {
-            connectToServer(neighborInfo.get(i));
+            NeighborInfo info = neighborInfo.get(i);
+            executor.submit(() -> {
+                try {
+                    this.connectWithRetry(info);
+                } catch (Exception e) {
+                    System.out.println("Could not connect to peer " + info.id);
+                    e.printStackTrace();
+                    if (!isConnected(info.id)) { // Once connected, dropping the neighbor counts it instead
+                        giveUpOn(1);
+                    }
+                }
+            });
+        }
+    }
+
+    // Retries a refused or timed out connection with exponential backoff, in case the neighbor is still starting
+    private void connectWithRetry(NeighborInfo info) throws Exception {
+        long backoff = CONNECT_BACKOFF;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                connectToServer(info);
+                return;
+            } catch (ConnectException | SocketTimeoutException e) {
+                if (attempt >= connectAttempts || !listening) {
+                    throw e;
+                }
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_CONNECT_BACKOFF);
+            }
+        }
+    }
+
+    // Longest a neighbor with our connect settings keeps dialing before it gives up
+    private long dialWindow() {
+        long window = connectTimeout;
+        long backoff = CONNECT_BACKOFF;
+        for (int attempt = 1; attempt < connectAttempts; attempt++) {
+            window += backoff + connectTimeout;
+            backoff = Math.min(backoff * 2, MAX_CONNECT_BACKOFF);
+        }
+        return window;
+    }
+
+    // Later peers in PeerInfo.cfg connect to us. Those that have not by acceptTimeout are given up on, as a peer
+    // we could not connect to is, so shutdown does not wait for them. 0 waits for them indefinitely
+    private void scheduleAcceptDeadline() {
+        if (awaitedDialIns.get() > 0 && acceptTimeout > 0) {
+            acceptDeadline = scheduler.schedule(() -> {
+                int missing = awaitedDialIns.getAndSet(-1);
+                if (missing > 0) {
+                    System.out.println("Peer " + id + " gave up waiting for " + missing + " neighbors to connect");
+                    giveUpOn(missing);
+                }
+            }, acceptTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Counts a later peer's connection against those still awaited. False once acceptTimeout has passed, since the
+    // peer was given up on and counting it now would let shutdown wait for it again
+    private boolean expectDialIn() {
+        while (true) {
+            int awaited = awaitedDialIns.get();
+            if (awaited < 0) {
+                return false;
+            }
+            if (awaited == 0 || awaitedDialIns.compareAndSet(awaited, awaited - 1)) {
+                return true;
+            }
+        }
+    }
+
+    // Neighbors that never connected; shutdown no longer waits for them
+    private void giveUpOn(int count) {
+        droppedNeighbors.addAndGet(count);
+        try {
+            checkDone();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private boolean isConnected(int neighborId) {
+        for (Neighbor n : neighbors) {
+            if (n.id == neighborId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Opens a channel-backed socket, giving up after connectTimeout
+    private Socket openSocket(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), connectTimeout);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel.socket();
+    }
+
+    // Reports how long it took until every neighbor in PeerInfo.cfg was connected
+    private void neighborConnected() {
+        if (neighbors.size() == numNeighbors && fullyConnectedReported.compareAndSet(false, true)) {
+            long millis = (System.nanoTime() - startTime) / 1_000_000;
+            System.out.println("Peer " + id + " connected to all " + numNeighbors + " neighbors in " + millis + " ms");
         }
     }
 
@@ -236,6 +702,35 @@ public class Peer {
         return neighborId;
     }
 
+    // Binary handshake: "P2PFILESHARINGPROJ", 10 zero bytes and this peer's ID as a 4-byte integer
+    private void writeHandshake(SocketChannel channel) throws IOException {
+        ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+        handshake.put(HANDSHAKE_HEADER);
+        handshake.put(new byte[10]);
+        handshake.putInt(this.id);
+        handshake.flip();
+        while (handshake.hasRemaining()) {
+            channel.write(handshake);
+        }
+    }
+
+    // Reads a binary handshake and returns the peer ID it carries
+    private int readHandshake(SocketChannel channel) throws Exception {
+        ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+        while (handshake.hasRemaining()) {
+            if (channel.read(handshake) < 0) {
+                throw new EOFException("Connection closed during handshake");
+            }
+        }
+        for (int i = 0; i < HANDSHAKE_LENGTH - 4; i++) {
+            byte expected = i < HANDSHAKE_HEADER.length ? HANDSHAKE_HEADER[i] : 0;
+            if (handshake.get(i) != expected) {
+                throw new Exception("Received wrong handshake from neighbor");
+            }
+        }
+        return handshake.getInt(HANDSHAKE_LENGTH - 4);
+    }
+
     public void handShakeClient(Socket s) throws Exception {
         ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
         out.flush();
@@ -249,10 +744,13 @@ public class Peer {
     }
 
     public void createNeighborThreads(Neighbor n) throws Exception {
-        n.responderThread = new Thread(() -> {
+        if (transport != null) {
+            transport.register(n); // Selector loops replace the responder and initiator threads
+            return;
+        }
+        n.responderThread = executor.submit(() -> {
             try {
                 this.responder(n);
-                n.connection.close();
                 return;
             } catch (InterruptedException e) {
                 return;
@@ -260,11 +758,35 @@ public class Peer {
                 return;
             }
             catch (Exception e) {
-                e.printStackTrace();
+                if (n.listening) e.printStackTrace(); // Otherwise the neighbor was disconnected
+            } finally {
+                try {
+                    connectionLost(n);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                n.outbound.close(); // The writer sends what is still queued and closes the connection
+            }
+        });
+        n.writerThread = executor.submit(() -> {
+            try {
+                this.writer(n);
+            } catch (InterruptedException e) {
+                return;
+            } catch(SocketException e) {
+                return;
+            } catch (Exception e) {
+                if (n.listening) e.printStackTrace();
+            } finally {
+                n.outbound.close(); // Frames queued after a failed write are dropped instead of filling the queue
+                try {
+                    n.connection.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
             }
         });
-        n.responderThread.start();
-        n.initiatorThread = new Thread(() -> {
+        n.initiatorThread = executor.submit(() -> {
             try {
                 this.initiator(n);
                 return;
@@ -276,11 +798,10 @@ public class Peer {
                 e.printStackTrace();
             }
         });
-        n.initiatorThread.start();
     }
 
     public void createWelcomeThread() {
-        this.welcomeThread = new Thread(() -> {
+        this.welcomeThread = executor.submit(() -> {
             try {
                 this.listenForNewNeighbor();
                 welcomeSocket.close();
@@ -293,236 +814,273 @@ public class Peer {
                 e.printStackTrace();
             }
         });
-        welcomeThread.start();
     }
-    public void createTimerThread() {
-        this.timerThread = new Thread(() -> {
-            try {
-                this.timer();
-                return;
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
-        this.timerThread.start();
+    // Runs the choke rounds at a fixed rate on their own thread, so the schedule does not drift with the
+    // time a round takes and message handling never waits for a round to be due
+    public void scheduleChokeRounds() {
+        scheduler.scheduleAtFixedRate(() -> runRound(unchokeStats, this::unchoke),
+                0, unchokeInterval, TimeUnit.NANOSECONDS);
+        scheduler.scheduleAtFixedRate(() -> runRound(optimisticUnchokeStats, this::optimisticUnchoke),
+                0, optimisticUnchokeInterval, TimeUnit.NANOSECONDS);
     }
 
-    // Thread for reading from neighbor connection
+    // Thread for reading from neighbor connection. The neighbor's decoder reads into one reused buffer and hands
+    // each message to handleMessage as a view of it; PIECE data is read straight into the block's region of the file
     public void responder(Neighbor neighbor) throws Exception {
-        // For each message, get message type
-        InputStream in = neighbor.connection.getInputStream();
         while(neighbor.listening) {
-            byte[] lengthBytes = in.readNBytes(4); // Wait for message to come in
-            if (!listening) {
+            // Keep reading after this peer is done until the SHUTDOWN exchange ends the loop. Closing with a message
+            // unread resets the connection, and the neighbor could lose the HAVE messages it still needs.
+            // For the same reason the done result of the handlers does not end the loop
+            int n = neighbor.decoder.read(neighbor.channel, neighbor.downloadThrottle.isLimited() ? Throttle.QUANTUM : Integer.MAX_VALUE);
+            if (n < 0) {
+                return; // Neighbor closed the connection
+            }
+            neighbor.downloadThrottle.consume(n);
+            long delay = neighbor.downloadThrottle.delayNanos();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay); // The unread data stays in the socket buffer and TCP slows the sender
+            }
+        }
+    }
+
+    // Thread for writing to neighbor connection. Takes frames off the neighbor's outbound queue until the
+    // responder is done with the connection and the queue is empty. Everything queued while the previous
+    // write was in progress goes out together in one write call
+    public void writer(Neighbor neighbor) throws Exception {
+        FrameWriter out = neighbor.frameWriter;
+        while (true) {
+            Object frame = neighbor.outbound.take(); // Sleeps until a frame is queued or the queue is closed
+            if (frame == null) {
                 return;
             }
-            int messageLength = Util.fourBytesToInt(lengthBytes);
-
-            int type = in.read();
-            switch(type) {
-                // Choke
-                // Stop receiving messages from neighbor
-                case 0:
-                    neighbor.chokingPeer = true;
-                    logObj.logChoked(this.id, neighbor.id);
-                    break;
-
-                // Unchoke
-                // Begin receiving messages from neighbor
-                case 1:
-                    neighbor.chokingPeer = false;
-                    logObj.logUnchoked(this.id, neighbor.id);
-                    break;
-
-                //Interested
-                case 2:
-                    neighbor.interestedInPeer = true;
-                    logObj.logReceivedInterested(this.id, neighbor.id);
-                    break;
-
-                // Not Interested
-                case 3:
-                    neighbor.interestedInPeer = false;
-                    logObj.logReceivedNotInterested(this.id, neighbor.id);
-                    break;
-
-                // Have
-                case 4:
-                    byte[] byteIndex = in.readNBytes(4);
-                    int index = Util.fourBytesToInt(byteIndex);
-                    logObj.logReceivedHave(this.id, neighbor.id, index);
-
-                    if (!neighbor.bitfield.get(index)) {
-                        neighbor.bitfield.set(index, true);
-                        neighbor.numPieces++;
-                        if (neighbor.numPieces == totalPieces) {
-                            neighbor.finished = true;
-                            countFinishedNeighbors++;
-                            logObj.logCompletionOfDownload(neighbor.id);
-                            if (checkDone()) return;
-                        }
-                    }
-                    if (!this.bitfield.get(index)) {
-                        neighbor.piecesForPeerLock.lock();
-                        try {
-                            neighbor.piecesForPeer.add(index);
-                        } finally {
-                            neighbor.piecesForPeerLock.unlock();
-                        }
+            out.add(frame);
+            if (coalesceDelay > 0 && neighbor.outbound.isEmpty()) {
+                LockSupport.parkNanos(coalesceDelay); // Bounded wait for more messages to share the write
+            }
+            out.take(neighbor.outbound);
+            while (!out.flush(neighbor.channel)) {
+                // transferTo can send a piece in several parts even on a blocking channel. With a bandwidth
+                // limit the writer also waits here until its token buckets allow more piece data. Messages
+                // queued meanwhile go out ahead of the waiting upload, so they end the wait early
+                long delay = out.throttleDelay();
+                if (delay > 0) {
+                    Object next = neighbor.outbound.poll(delay, TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        out.add(next);
+                        out.take(neighbor.outbound);
                     }
-                    checkInterestInNeighbor(neighbor);
-                    break;
-
-                // Bitfield
-                case 5:
-                    byte[] bitfieldBytes = in.readNBytes(messageLength-1);
-                    neighbor.bitfield = bytesToBitSet(bitfieldBytes);
-                    neighbor.piecesForPeerLock.lock();
-                    try {
-                        for (int i=0; i<totalPieces; i++) {
-                            if (neighbor.bitfield.get(i)) {
-                                neighbor.numPieces++;
-                                if (!this.bitfield.get(i)) {
-                                    neighbor.piecesForPeer.add(i);
-                                }
-                            }
-                        }
+                }
+            }
+        }
+    }
+
+    // Handles every message type except PIECE. Returns true once all peers are done
+    public boolean handleMessage(Neighbor neighbor, int type, ByteBuffer payload) throws IOException {
+        switch(type) {
+            // Choke
+            // Stop receiving messages from neighbor
+            case 0:
+                neighbor.chokingPeer = true;
+                releaseRequests(neighbor);
+                logObj.logChoked(this.id, neighbor.id);
+                break;
+
+            // Unchoke
+            // Begin receiving messages from neighbor
+            case 1:
+                neighbor.chokingPeer = false;
+                logObj.logUnchoked(this.id, neighbor.id);
+                wakeInitiator(neighbor);
+                break;
+
+            //Interested
+            case 2:
+                neighbor.interestedInPeer = true;
+                logObj.logReceivedInterested(this.id, neighbor.id);
+                break;
+
+            // Not Interested
+            case 3:
+                neighbor.interestedInPeer = false;
+                logObj.logReceivedNotInterested(this.id, neighbor.id);
+                break;
 
-                    } finally {
-                        neighbor.piecesForPeerLock.unlock();
+            // Have
+            case 4:
+                checkPayload(neighbor, "HAVE", payload, 4);
+                int index = payload.getInt();
+                logObj.logReceivedHave(this.id, neighbor.id, index);
+                if (index < 0 || index >= totalPieces) {
+                    break; // Not a piece of this file
+                }
+
+                boolean newPiece;
+                requestLock.lock();
+                try {
+                    newPiece = neighbor.bitfield.set(index);
+                    if (newPiece) {
+                        availability.addCopy(index);
                     }
+                } finally {
+                    requestLock.unlock();
+                }
+                if (newPiece) {
+                    neighbor.numPieces++;
                     if (neighbor.numPieces == totalPieces) {
                         neighbor.finished = true;
-                        countFinishedNeighbors++;
-                        logObj.logCompletionOfDownload(neighbor.id); // Log completion of download from bitfield?
-                    }
-                    checkInterestInNeighbor(neighbor);
-                    if (checkDone()) return;
-                    break;
-
-                // Request
-                case 6:
-                    byte[] requestIndexBytes = in.readNBytes(4);
-                    int requestedIndex = Util.fourBytesToInt(requestIndexBytes);
-                    Boolean unchoked = false;
-                    chokeLock.lock();
-                    try {
-                        unchoked = unchokedNeighbors.contains(neighbor);
-                    } finally {
-                        chokeLock.unlock();
-                    }
-                    if (unchoked) {
-                        sendMessage(MessageType.PIECE, neighbor, p2pFile.getPiece(requestedIndex));
-                        neighbor.piecesInInterval++;
-                    }
-                    else {
-                        // We can send an empty piece for the request index if the neighbor has been choked
-                        // This will let then know to request the piece from another neighbor
-                        sendMessage(MessageType.PIECE, neighbor, requestIndexBytes);
-                    }
-                    break;
-
-                // Piece
-                case 7:
-
-                    // The first four bytes of a piece payload is the index
-                    byte[] pieceIndexBytes = in.readNBytes(4);
-                    int pieceIndex = Util.fourBytesToInt(pieceIndexBytes);
-                    if (messageLength == 5) {
-                        // Piece was not sent over (neighbor does not have or we have been choked)
-                        requested.set(pieceIndex, false);
-                        neighbor.waitingForPiece = false;
-                    }
-                    else {
-                        byte[] pieceData = in.readNBytes(messageLength-5);
-                        p2pFile.writePiece(pieceIndex, pieceData, neighbor.id);
-                        requested.set(pieceIndex, false);
-                        neighbor.waitingForPiece = false;
-                        if (!this.bitfield.get(pieceIndex)) {
-                            this.bitfield.set(pieceIndex, true);
-                            numPieces++;
-                            boolean done = numPieces == totalPieces ? true : false;
-                            logObj.logDownloadedPiece(this.id, neighbor.id, pieceIndex, this.numPieces);
-                            if (done) {
-                                this.finished = true;
-                                logObj.logCompletionOfDownload(this.id);
-                            }
+                        if (neighbor.settled.compareAndSet(false, true)) {
+                            countFinishedNeighbors.incrementAndGet();
                         }
+                        logObj.logCompletionOfDownload(neighbor.id);
+                        if (checkDone()) return true;
+                    }
+                }
+                if (!this.bitfield.get(index) && neighbor.piecesForPeer.set(index) && this.bitfield.get(index)) {
+                    neighbor.piecesForPeer.clear(index); // The piece completed meanwhile, after its bit was cleared here
+                }
+                checkInterestInNeighbor(neighbor);
+                wakeInitiator(neighbor);
+                break;
 
-                        int len = neighbors.size();
-                        for (int i=0; i<len; i++) {
-                            Neighbor n = neighbors.get(i);
-                            sendMessage(MessageType.HAVE, n, pieceIndexBytes);
-
-                            // Upon receiving a new packet, remove packet index for set of packets that neighbors have and peer does not
-                            // If set of missing packets that a neighbor has becomes 0, send NOT_INTERESTED
-                            n.piecesForPeerLock.lock();
-                            try {
-                                if (n.piecesForPeer.contains(pieceIndex)) {
-                                    n.piecesForPeer.remove(pieceIndex);
-                                    checkInterestInNeighbor(n);
-                                }
-                            } finally {
-                                n.piecesForPeerLock.unlock();
-                            }
+            // Bitfield
+            case 5:
+                BitSet neighborBitfield = bytesToBitSet(payload);
+                int added = 0;
+                requestLock.lock();
+                try {
+                    // A HAVE sent while the neighbor was connecting can arrive first; those pieces are already counted
+                    for (int i = neighborBitfield.nextSetBit(0); i >= 0 && i < totalPieces; i = neighborBitfield.nextSetBit(i + 1)) {
+                        if (neighbor.bitfield.set(i)) {
+                            availability.addCopy(i);
+                            added++;
                         }
                     }
-                    if (checkDone()) return;
-                    break;
-                // Shutdown Req
-                case 8:
-                    neighbor.listening = false;
-                    sendMessage(MessageType.SHUTDOWN_ACK, neighbor, null);
-                    break;
-
-                // Shutdown ACK
-                case 9:
-                    neighbor.listening = false;
-                    break;
-
-                default: {
-                        System.out.println("Received invalid message type");
+                } finally {
+                    requestLock.unlock();
+                }
+                neighbor.numPieces += added;
+                neighbor.piecesForPeer.orAndNot(neighborBitfield, this.bitfield);
+                neighbor.piecesForPeer.andNot(this.bitfield); // Pieces that completed during the merge
+                if (neighbor.numPieces == totalPieces && !neighbor.finished) {
+                    neighbor.finished = true;
+                    if (neighbor.settled.compareAndSet(false, true)) {
+                        countFinishedNeighbors.incrementAndGet();
+                    }
+                    logObj.logCompletionOfDownload(neighbor.id); // Log completion of download from bitfield?
+                }
+                checkInterestInNeighbor(neighbor);
+                wakeInitiator(neighbor);
+                if (checkDone()) return true;
+                break;
+
+            // Request
+            case 6:
+                checkPayload(neighbor, "REQUEST", payload, blockMode ? 12 : 4);
+                int requestedIndex = payload.getInt();
+                int begin = blockMode ? payload.getInt() : 0;
+                int length = blockMode ? payload.getInt() : -1; // Whole piece
+                if (neighbor.unchoked) {
+                    sendPiece(neighbor, requestedIndex, begin, length);
                 }
+                else {
+                    // We can send an empty piece for the request index if the neighbor has been choked
+                    // This will let then know to request the piece from another neighbor
+                    sendMessage(MessageType.PIECE, neighbor, blockReference(requestedIndex, begin));
+                }
+                break;
+
+            // Shutdown Req
+            case 8:
+                neighbor.listening = false;
+                sendMessage(MessageType.SHUTDOWN_ACK, neighbor, null);
+                break;
+
+            // Shutdown ACK
+            case 9:
+                neighbor.listening = false;
+                break;
+
+            default: {
+                    System.out.println("Received invalid message type");
             }
         }
+        return false;
     }
 
-    // Thread for starting message sends to neighbors (piece requests)
+    // A payload too short for its message type means the neighbor is broken; the IOException drops it
+    private void checkPayload(Neighbor neighbor, String type, ByteBuffer payload, int length) throws IOException {
+        if (payload.remaining() < length) {
+            throw new IOException("Received " + type + " from peer " + neighbor.id + " with " + payload.remaining()
+                    + " payload bytes, expected " + length);
+        }
+    }
+
+    // Handles a PIECE message whose data (if any) is already in the block's region of the file. Returns true once all peers are done
+    public boolean handlePiece(Neighbor neighbor, int pieceIndex, int begin, boolean hasData) throws IOException {
+        int block = p2pFile.blockId(pieceIndex, begin);
+        if (!hasData) {
+            // Block was not sent over (neighbor does not have or we have been choked)
+            completeRequest(neighbor, block, false);
+            return checkDone();
+        }
+        if (p2pFile.blockStored(pieceIndex, begin)) {
+            // That was the last missing block of the piece. A duplicate from endgame requests stores nothing new
+            int count;
+            requestLock.lock();
+            try {
+                this.bitfield.set(pieceIndex);
+                availability.remove(pieceIndex);
+                count = ++numPieces; // Pieces can complete on several responder threads at once
+            } finally {
+                requestLock.unlock();
+            }
+            neighbor.piecesDownloaded.increment();
+            boolean done = count == totalPieces ? true : false;
+            logObj.logDownloadedPiece(this.id, neighbor.id, pieceIndex, count);
+            if (done) {
+                logObj.logCompletionOfDownload(this.id);
+            }
+
+            byte[] pieceIndexBytes = Util.intToFourBytes(pieceIndex);
+            int len = neighbors.size();
+            for (int i=0; i<len; i++) {
+                Neighbor n = neighbors.get(i);
+                sendMessage(MessageType.HAVE, n, pieceIndexBytes);
+
+                // Upon receiving a new packet, remove packet index for set of packets that neighbors have and peer does not
+                // If set of missing packets that a neighbor has becomes 0, send NOT_INTERESTED
+                if (n.piecesForPeer.clear(pieceIndex)) {
+                    checkInterestInNeighbor(n);
+                }
+            }
+            if (done) {
+                // Only once every neighbor has the last HAVE queued: from here another thread's checkDone can
+                // start the shutdown, and HAVE queued after SHUTDOWN would never be read
+                this.finished = true;
+            }
+            completeRequest(neighbor, block, true);
+            if (inEndgame()) {
+                wakeRequesters(); // Neighbors with free slots can now duplicate the remaining blocks
+            }
+            return checkDone();
+        }
+        completeRequest(neighbor, block, true);
+        return checkDone();
+    }
+
+    // Thread for starting message sends to neighbors (piece requests). Sleeps until something may let it
+    // request more: UNCHOKE, HAVE or BITFIELD from the neighbor, a reply freeing a slot, or a released block
     public void initiator(Neighbor neighbor) throws Exception {
-        OutputStream out = neighbor.connection.getOutputStream();
         while(listening) {
-            if (!neighbor.chokingPeer) {
-                if (neighbor.interestedInNeighbor ) {
-                    if (!neighbor.waitingForPiece) {
-                        //If we are not choked by the neighbor, neighbor has pieces we do not,
-                        // and we do not have an outstanding piece request to neighbor, find a piece to request
-                        if (neighbor.piecesForPeer.size() == 0) {
-                            continue;
-                        }
-                        int pieceNumber = -1;
-                        neighbor.piecesForPeerLock.lock();
-                        try {
-                            int random = new Random().nextInt(neighbor.piecesForPeer.size());
-                            int count = 0;
-                            pieceNumber = 0;
-                            for (int iterator : neighbor.piecesForPeer) {
-                                if (count == random) {
-                                    pieceNumber = iterator;
-                                    break;
-                                }
-                                count++;
-                            }
-                            if (requested.get(pieceNumber)) {
-                                continue; // Don't request the same piece twice
-                            }
-                        } finally {
-                            neighbor.piecesForPeerLock.unlock();
-                        }
-                        byte[] pieceNumberBytes = Util.intToFourBytes(pieceNumber);
-                        neighbor.waitingForPiece = true;
-                        sendMessage(MessageType.REQUEST, neighbor, pieceNumberBytes);
-                    }
+            requestPiece(neighbor);
+            neighbor.wakeLock.lock();
+            try {
+                while (!neighbor.wakePending && listening) {
+                    neighbor.wakeCondition.await();
                 }
+                neighbor.wakePending = false;
+            } finally {
+                neighbor.wakeLock.unlock();
             }
         }
         if (neighbor.id > this.id) {
@@ -530,142 +1088,265 @@ public class Peer {
         }
     }
 
-    // add Locks / Mutexes here if possible
-    public void timer() throws IOException {
-        while(listening) {
-            if (System.nanoTime() >= this.lastUnchoke + this.unchokeInterval) {
-                unchoke();
-                this.lastUnchoke = System.nanoTime();
+    // While we are not choked by the neighbor, the neighbor has pieces we do not,
+    // and fewer than pipelineDepth requests are outstanding to it, request more blocks
+    public void requestPiece(Neighbor neighbor) throws IOException {
+        while (!neighbor.chokingPeer && neighbor.interestedInNeighbor) {
+            int block = -1;
+            requestLock.lock();
+            try {
+                if (neighbor.outstandingRequests.size() + neighbor.abandonedRequests.size() >= pipelineDepth) {
+                    return;
+                }
+                block = nextBlock(neighbor);
+                if (block < 0 && inEndgame()) {
+                    block = endgameBlock(neighbor);
+                }
+                if (block < 0) {
+                    return;
+                }
+                requested.set(block); // Don't request the same block twice
+                neighbor.outstandingRequests.add(block);
+                neighbor.requestTimes.put(block, System.nanoTime());
+            } finally {
+                requestLock.unlock();
             }
+            sendMessage(MessageType.REQUEST, neighbor, blockRequest(block));
+        }
+    }
 
-            if (System.nanoTime() >= this.lastOptimisticUnchoke + this.optimisticUnchokeInterval) {
-                optimisticUnchoke();
-                this.lastOptimisticUnchoke = System.nanoTime();
+    // Picks an unrequested block of the rarest piece the neighbor has. Blocks of one piece may be requested from
+    // several neighbors; the piece leaves the availability index once all of its blocks are requested. Caller holds requestLock
+    private int nextBlock(Neighbor neighbor) {
+        while (true) {
+            int pieceIndex = availability.rarest(neighbor.bitfield);
+            if (pieceIndex < 0) {
+                return -1;
+            }
+            int first = p2pFile.blockId(pieceIndex, 0);
+            int end = first + p2pFile.blockCount(pieceIndex);
+            int block = -1;
+            for (int b = first; b < end; b++) {
+                if (!requested.get(b) && !p2pFile.hasBlock(b)) {
+                    if (block >= 0) {
+                        return block; // More blocks of this piece are left for later requests
+                    }
+                    block = b;
+                }
+            }
+            availability.remove(pieceIndex);
+            if (block >= 0) {
+                return block;
             }
         }
     }
 
-    private void sendBitfield(Neighbor n) throws IOException {
-        if (this.numPieces == 0) {
-            return; // Don't send bitfield message if peer has no pieces
+    private boolean inEndgame() {
+        return totalPieces - numPieces <= endgameThreshold;
+    }
+
+    // In endgame, picks a block already requested from another neighbor that this neighbor can also serve,
+    // so the last pieces are not held up by the slowest neighbor. Whichever copy arrives first is stored and
+    // later copies are discarded. Caller holds requestLock
+    private int endgameBlock(Neighbor neighbor) {
+        for (int block = requested.nextSetBit(0); block >= 0; block = requested.nextSetBit(block + 1)) {
+            if (neighbor.bitfield.get(p2pFile.blockPiece(block)) && !neighbor.outstandingRequests.contains(block)
+                    && !neighbor.abandonedRequests.contains(block) && !p2pFile.hasBlock(block)) {
+                return block;
+            }
         }
-        byte[] bytes = bitfield.toByteArray();
-        sendMessage(MessageType.BITFIELD, n, bytes);
+        return -1;
     }
 
-    private void unchoke() throws IOException {
-        // Find peers with greatest download rates
-        // We can just sort for now, but not best TC
-        chokeLock.lock();
+    // REQUEST payload: the piece index, followed by the begin offset and length with blocks
+    private byte[] blockRequest(int block) {
+        int pieceIndex = p2pFile.blockPiece(block);
+        if (!blockMode) {
+            return Util.intToFourBytes(pieceIndex);
+        }
+        int begin = p2pFile.blockBegin(block);
+        return ByteBuffer.allocate(12).putInt(pieceIndex).putInt(begin).putInt(p2pFile.blockLength(pieceIndex, begin)).array();
+    }
+
+    // Index (and begin offset with blocks) that starts a PIECE payload
+    private byte[] blockReference(int pieceIndex, int begin) {
+        if (!blockMode) {
+            return Util.intToFourBytes(pieceIndex);
+        }
+        return ByteBuffer.allocate(8).putInt(pieceIndex).putInt(begin).array();
+    }
+
+    // A PIECE reply (with or without data) arrived for a request to the neighbor
+    private void completeRequest(Neighbor neighbor, int block, boolean hasData) throws IOException {
+        boolean released;
+        long sentAt;
+        requestLock.lock();
         try {
-            // Get all interested neighbors
-            Vector<Neighbor> interestedNeighbors = new Vector<Neighbor>();
-            List<Neighbor> neighborsCopy;
-            synchronized (this.neighbors) {
-                neighborsCopy = new ArrayList<>(this.neighbors);
+            sentAt = neighbor.requestTimes.take(block);
+            released = neighbor.outstandingRequests.remove(block) && releaseBlock(neighbor, block);
+            neighbor.abandonedRequests.remove(block); // Already released if the neighbor choked us
+        } finally {
+            requestLock.unlock();
+        }
+        if (hasData && sentAt != 0) {
+            long latency = System.nanoTime() - sentAt;
+            neighbor.requestLatency.record(latency);
+            requestLatency.record(latency);
+        }
+        if (released) {
+            wakeRequesters();
+        } else {
+            wakeInitiator(neighbor); // The reply freed a slot in the neighbor's pipeline
+        }
+    }
+
+    // Makes a block requestable again unless it has already arrived or, in endgame, is still requested
+    // from another neighbor. Caller holds requestLock
+    private boolean releaseBlock(Neighbor neighbor, int block) {
+        for (int i = 0; i < neighbors.size(); i++) {
+            Neighbor n = neighbors.get(i);
+            if (n != neighbor && n.outstandingRequests.contains(block)) {
+                return false;
             }
-            for (Neighbor n : neighborsCopy) {
-                if (n.interestedInPeer) {
-                    interestedNeighbors.add(n);
-                }
+        }
+        requested.clear(block);
+        if (p2pFile.hasBlock(block)) {
+            return false;
+        }
+        availability.restore(p2pFile.blockPiece(block));
+        return true;
+    }
+
+    // A released block may be requestable from a neighbor whose window had nothing left to ask for.
+    // The NIO transport has no initiator threads and otherwise only requests after a read
+    private void wakeRequesters() throws IOException {
+        for (int i = 0; i < neighbors.size(); i++) {
+            Neighbor n = neighbors.get(i);
+            if (transport == null) {
+                wakeInitiator(n);
+            } else if (n.listening) {
+                requestPiece(n);
             }
-            if (interestedNeighbors.size() == 0) {
-                return;
+        }
+    }
+
+    // Lets the neighbor's initiator thread check for requests again. The NIO transport requests after every read instead
+    private void wakeInitiator(Neighbor neighbor) {
+        if (transport != null) {
+            return;
+        }
+        neighbor.wakeLock.lock();
+        try {
+            neighbor.wakePending = true;
+            neighbor.wakeCondition.signal();
+        } finally {
+            neighbor.wakeLock.unlock();
+        }
+    }
+
+    // The neighbor choked us: let other neighbors request its outstanding blocks. The replies still count
+    // against its pipeline until they arrive
+    private void releaseRequests(Neighbor neighbor) throws IOException {
+        boolean released = false;
+        requestLock.lock();
+        try {
+            for (int block : neighbor.outstandingRequests) {
+                released |= releaseBlock(neighbor, block);
             }
+            neighbor.abandonedRequests.addAll(neighbor.outstandingRequests);
+            neighbor.outstandingRequests.clear();
+        } finally {
+            requestLock.unlock();
+        }
+        if (released) {
+            wakeRequesters();
+        }
+    }
 
-            // Sort interested neighbors by those who have downloaded the most pieces
-            Collections.sort(interestedNeighbors, new SortByDownloadRate());
+    private interface Round {
+        void run() throws IOException;
+    }
 
-            Vector<Neighbor> toUnchoke = new Vector<Neighbor>();
-            Vector<Neighbor> toChoke = new Vector<Neighbor>();
+    // Times one choke round. An exception is printed rather than thrown, which would cancel the schedule
+    private void runRound(RoundStats stats, Round round) {
+        long start = System.nanoTime();
+        try {
+            round.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        stats.record(System.nanoTime() - start);
+    }
 
-            for (int i=0; i<interestedNeighbors.size(); i++) {
-                if (toUnchoke.size() == maxConnections) {
-                    break;
-                }
-                // Last interested neighbor, add them to be unchoked
-                if (i == interestedNeighbors.size()-1) {
-                    toUnchoke.add(interestedNeighbors.get(i));
-                    break;
-                }
-                // If neighbor has requested more pieces than next most, add them to be unchoked
-                if (interestedNeighbors.get(i).piecesInInterval > interestedNeighbors.get(i+1).piecesInInterval) {
-                    toUnchoke.add(interestedNeighbors.get(i));
-                }
-                // If there is a tie, randomly select from tied peers until unchoked is full
-                else if (interestedNeighbors.get(i).piecesInInterval == interestedNeighbors.get(i+1).piecesInInterval) {
-                    Vector<Neighbor> tie = new Vector<Neighbor>();
-                    while (i < interestedNeighbors.size()-1 && interestedNeighbors.get(i).piecesInInterval == interestedNeighbors.get(i+1).piecesInInterval) {
-                        tie.add(interestedNeighbors.get(i));
-                        i++;
-                    }
-                    tie.add(interestedNeighbors.get(i));
-                    // If there are less tied peers than remaining allowed connections, all tied peers should be added
-                    if (tie.size() <= maxConnections - toUnchoke.size()) {
-                        for (int j=0; j<tie.size(); j++) {
-                            toUnchoke.add(tie.get(j));
-                        }
-                    }
-                    else {
-                        // Randomly select preferred neighbors among tied peers
-                        Random random = new Random();
-                        while (toUnchoke.size() < maxConnections) {
-                            int index = new Random().nextInt(tie.size());
-                            toUnchoke.add(tie.get(index));
-                            tie.remove(index);
-                        }
-                    }
-                }
-            }
+    private void sendBitfield(Neighbor n) throws IOException {
+        if (this.numPieces == 0) {
+            return; // Don't send bitfield message if peer has no pieces
+        }
+        sendMessage(MessageType.BITFIELD, n, bitfield.toByteArray());
+    }
+
+    // Picks the preferred neighbors without holding chokeLock, so REQUEST handling is never held up by the ranking,
+    // then applies the change under the lock and sends the messages after it. Only the scheduler thread runs rounds,
+    // so the selection state is reused from round to round
+    private void unchoke() throws IOException {
+        if (ranking.rank(neighbors, this.finished, maxConnections, System.nanoTime()) == 0) {
+            return;
+        }
+        int count = ranking.preferredCount(); // The fastest maxConnections neighbors, fastest first
 
-            // If an unchoked neighbor is not reselected to be unchoked
+        List<Neighbor> toChoke = new ArrayList<Neighbor>();
+        List<Neighbor> toUnchoke = new ArrayList<Neighbor>();
+        StringBuilder prefNeighbors = new StringBuilder();
+        chokeLock.lock();
+        try {
+            // Unchoked neighbors who were not reselected are choked, unless they are the optimistic one
             for (Neighbor n : unchokedNeighbors) {
-                if (!toUnchoke.contains(n) && this.optimisticUnchokedNeighbor != n) {
+                if (!ranking.isPreferred(n) && this.optimisticUnchokedNeighbor != n) {
                     toChoke.add(n);
                 }
             }
-
-            // Log if preferred neighbors changed
-            boolean toLog = false;
-
-            // Get neighbors who will be choked
             for (Neighbor n : toChoke) {
-                if (unchokedNeighbors.contains(n)) {
-                    toLog = true;
-                    unchokedNeighbors.remove(n);
-                    chokedNeighbors.add(n);
-                    sendMessage(MessageType.CHOKE, n, null);
-                }
+                setChoked(n);
             }
-
-            String separator = "";
-            StringBuilder prefNeighbors = new StringBuilder();
-            // Unchoke neighbors who have been selecting for unchoking. Log as necessary
-            for (Neighbor n : toUnchoke) {
-                prefNeighbors.append(separator);
-                prefNeighbors.append(n.id);
-                separator = ", ";
-                if (chokedNeighbors.contains(n)) {
-                    toLog = true;
-                    chokedNeighbors.remove(n);
-                    unchokedNeighbors.add(n);
-                    sendMessage(MessageType.UNCHOKE, n, null);
+            for (int i = 0; i < count; i++) {
+                Neighbor n = ranking.preferred(i);
+                prefNeighbors.append(i > 0 ? ", " : "").append(n.id);
+                if (!n.unchoked) {
+                    setUnchoked(n);
+                    toUnchoke.add(n);
                 }
                 if (n == this.optimisticUnchokedNeighbor) {
                     this.optimisticUnchokedNeighbor = null;
                 }
             }
-            if (toLog) logObj.logPreferredNeighbors(this.id, prefNeighbors.toString());
-
-            // Reset pieces downloaded in interval for all neighbors
-            int len = neighbors.size();
-            for (int i=0; i<len; i++) {
-                neighbors.get(i).piecesInInterval = 0;
-            }
         } finally {
             chokeLock.unlock();
         }
+        for (Neighbor n : toChoke) {
+            sendMessage(MessageType.CHOKE, n, null);
+        }
+        for (Neighbor n : toUnchoke) {
+            sendMessage(MessageType.UNCHOKE, n, null);
+        }
+        // Log if preferred neighbors changed
+        if (!toChoke.isEmpty() || !toUnchoke.isEmpty()) {
+            logObj.logPreferredNeighbors(this.id, prefNeighbors.toString());
+        }
     }
+
+    // Moves a neighbor between the choked and unchoked sets. Caller holds chokeLock
+    private void setUnchoked(Neighbor n) {
+        chokedNeighbors.remove(n);
+        unchokedNeighbors.add(n);
+        n.unchoked = true;
+    }
+
+    private void setChoked(Neighbor n) {
+        unchokedNeighbors.remove(n);
+        chokedNeighbors.add(n);
+        n.unchoked = false;
+    }
+
     private void optimisticUnchoke() throws IOException {
         Vector<Neighbor> interested = new Vector<Neighbor>();
         chokeLock.lock();
@@ -686,8 +1367,7 @@ public class Peer {
                 }
                 // Previous optimistically unchoked neighbor should be choked if not reselected
                 else if (optimisticUnchokedNeighbor != null && n != optimisticUnchokedNeighbor) {
-                    unchokedNeighbors.remove(optimisticUnchokedNeighbor);
-                    chokedNeighbors.add(optimisticUnchokedNeighbor);
+                    setChoked(optimisticUnchokedNeighbor);
                     sendMessage(MessageType.CHOKE, optimisticUnchokedNeighbor, null);
                     System.out.print("Choking neighbor " + optimisticUnchokedNeighbor.id);
 
@@ -695,15 +1375,13 @@ public class Peer {
                 }
                 // Unchoke selected neighbor
                 optimisticUnchokedNeighbor = n;
-                unchokedNeighbors.add(n);
-                chokedNeighbors.remove(n);
+                setUnchoked(n);
                 sendMessage(MessageType.UNCHOKE, n, null);
             }
             else {
                 // If previous optimistic unchoked neighbor is not interested and there are no other intersted neighbors, choke optimistic unchoked neighbor anyway
                 if (optimisticUnchokedNeighbor != null) {
-                    unchokedNeighbors.remove(optimisticUnchokedNeighbor);
-                    chokedNeighbors.add(optimisticUnchokedNeighbor);
+                    setChoked(optimisticUnchokedNeighbor);
                     sendMessage(MessageType.CHOKE, optimisticUnchokedNeighbor, null);
 
                 }
@@ -715,10 +1393,103 @@ public class Peer {
 
     }
 
+    // Queues a PIECE message. The writer sends the header and then hands the block's bytes from the file straight
+    // to the socket. A length of -1 asks for the whole piece
+    private void sendPiece(Neighbor n, int pieceIndex, int begin, int length) throws IOException {
+        if (!p2pFile.hasPiece(pieceIndex)) {
+            System.out.println("Piece " + pieceIndex + " was requested from this machine but we do not have it. This should not happen");
+            sendMessage(MessageType.PIECE, n, blockReference(pieceIndex, begin));
+            return;
+        }
+        int pieceLength = p2pFile.pieceLength(pieceIndex);
+        if (length == -1) {
+            length = pieceLength;
+        }
+        if (begin < 0 || length <= 0 || begin > pieceLength - length) {
+            System.out.println("Received invalid request for " + length + " bytes at " + begin + " of piece " + pieceIndex);
+            sendMessage(MessageType.PIECE, n, blockReference(pieceIndex, begin));
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(blockMode ? 13 : 9);
+        writePieceHeader(header, pieceIndex, begin, length);
+        enqueue(n, new OutboundQueue.PieceUpload(header, pieceIndex, begin, length));
+    }
+
+    private void writePieceHeader(ByteBuffer header, int pieceIndex, int begin, int length) {
+        header.putInt((blockMode ? 9 : 5) + length);
+        header.put(typeCode(MessageType.PIECE));
+        header.putInt(pieceIndex);
+        if (blockMode) {
+            header.putInt(begin);
+        }
+        header.flip();
+    }
+
+    // Queues the message as its 5-byte header and the payload as given, without copying them into one array
     private void sendMessage(MessageType messageType, Neighbor n, byte[] message) throws IOException {
-        OutputStream out = n.connection.getOutputStream();
         int messageLength = message != null ? message.length + 1 : 1;
-        byte[] messageLengthBytes = Util.intToFourBytes(messageLength);
+        ByteBuffer header = ByteBuffer.allocate(5);
+        header.putInt(messageLength).put(typeCode(messageType)).flip();
+        if (message == null) {
+            enqueue(n, new ByteBuffer[] { header });
+        } else {
+            enqueue(n, new ByteBuffer[] { header, ByteBuffer.wrap(message) });
+        }
+    }
+
+    // Puts a frame on the neighbor's outbound queue. If its piece uploads stay at the queue's capacity for
+    // outboundStallTimeout the neighbor has stopped keeping up and is disconnected. Selector threads never wait,
+    // since the neighbor may be theirs to drain; they queue past the capacity for the same grace period instead
+    private void enqueue(Neighbor n, Object frame) throws IOException {
+        boolean queued;
+        if (n.nioConnection != null) {
+            queued = n.outbound.offerNow(frame, outboundStallTimeout);
+        } else {
+            try {
+                queued = n.outbound.offer(frame, outboundStallTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while queueing a message for peer " + n.id);
+            }
+        }
+        if (!queued) {
+            disconnect(n, "with " + n.outbound.depth() + " messages queued");
+        } else if (n.nioConnection != null) {
+            transport.scheduleWrite(n.nioConnection);
+        }
+    }
+
+    // Called when a neighbor's connection ends. Before the SHUTDOWN exchange that means the neighbor is gone
+    public void connectionLost(Neighbor n) throws IOException {
+        if (n.listening) {
+            disconnect(n, "after its connection closed");
+        }
+    }
+
+    // Drops a neighbor for good: anything still queued for it is discarded, its outstanding requests go to the
+    // other neighbors, and shutdown no longer waits for it to finish
+    private void disconnect(Neighbor n, String reason) throws IOException {
+        if (!n.dropped.compareAndSet(false, true)) {
+            return;
+        }
+        n.outbound.close();
+        n.listening = false;
+        n.chokingPeer = true; // Nothing more is requested from it
+        n.interestedInPeer = false; // And it is no longer a candidate for unchoking
+        System.out.println("Peer " + id + " disconnected peer " + n.id + " " + reason);
+        try {
+            n.channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        releaseRequests(n);
+        if (n.settled.compareAndSet(false, true)) {
+            droppedNeighbors.incrementAndGet();
+        }
+        checkDone();
+    }
+
+    private byte typeCode(MessageType messageType) {
         byte type = -1;
         switch(messageType) {
             case CHOKE:
@@ -752,38 +1523,28 @@ public class Peer {
                 type = 9;
                 break;
         }
-        byte[] fullMessage = new byte[4+messageLength];
-        System.arraycopy(messageLengthBytes, 0, fullMessage, 0, 4);
-        fullMessage[4] = type;
-        if (message != null) {
-            System.arraycopy(message, 0, fullMessage, 5, message.length);
-        }
-
-        n.writeLock.lock();
-        try {
-            out.write(fullMessage);
-            out.flush();
-        } finally {
-            n.writeLock.unlock();
-        }
+        return type;
     }
 
+    // Tells the neighbor when we become interested or stop being interested. piecesForPeer changes without a lock,
+    // but every change is followed by this check, so the last message sent matches the latest state
     private boolean checkInterestInNeighbor(Neighbor neighbor) throws IOException {
-        if (neighbor.interestedInNeighbor == neighbor.piecesForPeer.isEmpty()) {
-            if (neighbor.piecesForPeer.isEmpty()) {
-                sendMessage(MessageType.NOT_INTERESTED, neighbor, null);
-            }
-            else {
-                sendMessage(MessageType.INTERESTED, neighbor, null);
+        neighbor.interestLock.lock();
+        try {
+            boolean interested = !neighbor.piecesForPeer.isEmpty();
+            if (neighbor.interestedInNeighbor != interested) {
+                sendMessage(interested ? MessageType.INTERESTED : MessageType.NOT_INTERESTED, neighbor, null);
             }
+            neighbor.interestedInNeighbor = interested;
+            return interested;
+        } finally {
+            neighbor.interestLock.unlock();
         }
-        neighbor.interestedInNeighbor = !neighbor.piecesForPeer.isEmpty();
-        return neighbor.interestedInNeighbor;
     }
 
     // If all neighbors and self is done, end all connections with Peer
     private boolean checkDone() throws IOException {
-        if (this.countFinishedNeighbors == numNeighbors && this.finished) {
+        if (this.countFinishedNeighbors.get() == numNeighbors - droppedNeighbors.get() && this.finished && shutdownStarted.compareAndSet(false, true)) {
             listening = false;
             shutDown();
             return true;
@@ -793,31 +1554,79 @@ public class Peer {
 
     private void shutDown() throws IOException {
         listening = false;
+        for (int i = 0; i < neighbors.size(); i++) {
+            wakeInitiator(neighbors.get(i)); // Initiators send the shutdown requests on their way out
+        }
         this.welcomeSocket.close();
-        this.timerThread.interrupt();
+        if (acceptDeadline != null) {
+            acceptDeadline.cancel(false); // A delayed task would otherwise still run after shutdown
+        }
+        this.scheduler.shutdown(); // Cancels the periodic rounds; a round already running finishes
+        System.out.println("Peer " + id + " unchoke rounds: " + unchokeStats + ", optimistic unchoke rounds: " + optimisticUnchokeStats);
+        if (transport != null) {
+            // Without initiator threads the shutdown requests are sent from here
+            for (Neighbor n : neighbors) {
+                if (n.id > this.id) {
+                    sendMessage(MessageType.SHUTDOWN, n, null);
+                }
+            }
+            transport.drain();
+        }
+        this.executor.shutdown(); // Running tasks finish on their own; idle pool threads exit
     }
 
 
-    // Not sure if this works
-    class SortByDownloadRate implements Comparator<Neighbor> {
-        public int compare(Neighbor a, Neighbor b) {
-            return b.piecesInInterval - a.piecesInInterval;
+    public void awaitShutdown() throws InterruptedException, IOException {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        p2pFile.close(); // Only now, since writers finish started uploads from it
+        StringBuilder peaks = new StringBuilder();
+        for (Neighbor n : neighbors) {
+            peaks.append(peaks.length() > 0 ? ", " : "").append(n.id).append('=').append(n.outbound.maxDepth());
+        }
+        System.out.println("Peer " + id + " outbound queue peaks: " + peaks);
+        StringBuilder transferred = new StringBuilder();
+        for (Neighbor n : neighbors) {
+            transferred.append(transferred.length() > 0 ? ", " : "").append(n.id).append('=')
+                    .append(n.downloadRate.total()).append('/').append(n.uploadRate.total());
+        }
+        System.out.println("Peer " + id + " piece bytes received/sent per neighbor: " + transferred);
+        long frames = 0, writes = 0;
+        for (Neighbor n : neighbors) {
+            frames += n.frameWriter.frames();
+            writes += n.frameWriter.writes();
         }
+        System.out.println("Peer " + id + " sent " + frames + " messages in " + writes + " socket writes");
+        System.out.println("Peer " + id + " duplicate block buffers: " + p2pFile.scratchPool());
+        if (p2pFile.syncer() != null) {
+            System.out.println("Peer " + id + " flushed " + p2pFile.syncer());
+        }
+        logObj.close(); // Nothing logs any more, so the queued events can be written out
     }
 
-    //Bytes come in as little-endian
-    public BitSet bytesToBitSet(byte[] bytes) {
-        BitSet bitSet = new BitSet();
-        for (int i=0; i<bytes.length; i++) {
-            for (int j=0; j<8; j++) {
-                if ((bytes[i] & 1) > 0) {
-                    if (i*8+j >= totalPieces) {
-                        continue;
-                    }
-                    bitSet.set(i*8+j);
-                }
-                bytes[i] = (byte)(bytes[i] >> 0x1);
-            }
+    // How long the rounds of one kind took to compute
+    static class RoundStats {
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        synchronized void record(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        public synchronized String toString() {
+            long average = count > 0 ? totalNanos / count : 0;
+            return count + " (avg " + average / 1000 + " us, max " + maxNanos / 1000 + " us)";
+        }
+    }
+
+    //Bytes come in as little-endian, the same order BitSet.valueOf reads them in
+    public BitSet bytesToBitSet(ByteBuffer bytes) {
+        BitSet bitSet = BitSet.valueOf(bytes);
+        if (bitSet.length() > totalPieces) {
+            bitSet.clear(totalPieces, bitSet.length()); // Spare bits of the last byte
         }
         return bitSet;
     }
@@ -831,6 +1640,7 @@ public class Peer {
         String fileName = "";
         long fileSize = -1; //will need to be able to store large numbers
         long pieceSize = -1;
+        HashMap<String, String> options = new HashMap<String, String>();
         try {
             id = Integer.parseInt(args[0]);
         } catch (Exception e) {
@@ -853,14 +1663,29 @@ public class Peer {
             fileName = information[1];
             line = scanner.nextLine();
             information = line.split(" ");
-            fileSize = Integer.parseInt(information[1]);
+            fileSize = Long.parseLong(information[1]);
             line = scanner.nextLine();
             information = line.split(" ");
-            pieceSize = Integer.parseInt(information[1]);
+            pieceSize = Long.parseLong(information[1]);
+            // Any further "Name value" lines are optional settings
+            while (scanner.hasNextLine()) {
+                information = scanner.nextLine().trim().split("\\s+");
+                if (information.length == 2) {
+                    options.put(information[0], information[1]);
+                }
+            }
             scanner.close();
         } catch (Exception e) {
             throw new Exception("Failed to open Common.cfg");
         }
+        // Pieces are numbered and messages carry piece lengths as 4-byte integers; offsets within the file are longs
+        if (fileSize < 0 || pieceSize <= 0 || pieceSize > Integer.MAX_VALUE) {
+            throw new Exception("Invalid FileSize " + fileSize + " or PieceSize " + pieceSize + " in Common.cfg");
+        }
+        if ((fileSize + pieceSize - 1) / pieceSize > Integer.MAX_VALUE) {
+            throw new Exception("FileSize " + fileSize + " needs more than " + Integer.MAX_VALUE
+                    + " pieces of PieceSize " + pieceSize + "; use a larger PieceSize");
+        }
         int count = 0;
         boolean found = false;
         NeighborInfo peerInfo = new NeighborInfo(-1, "-1", -1, -1);
@@ -898,6 +1723,7 @@ public class Peer {
         Peer peer = new Peer(peerInfo.id, count-1,
                 numPreferredNeighbors,unChokingInterval*1000000000,optimisticUnChokingInterval*1000000000,fileName,
                 fileSize,pieceSize,peerInfo.port,
-               peerInfo.hasFile, peerNeighborInfoFromConfig);
+               peerInfo.hasFile, peerNeighborInfoFromConfig, options);
+        peer.awaitShutdown(); // Virtual threads are daemons, so main has to keep the JVM alive
     }
 }
\ No newline at end of file
@@ -0,0 +1,20 @@
+package src;
+
+// Swarm-wide figures of one peer, registered as src:type=Peer,id=<peer id>
+public interface PeerMXBean {
+    int getPeerId();
+    int getPieces();
+    int getTotalPieces();
+    double getCompletionPercent();
+    // Seconds until the download completes at the current download rate; 0 when done, -1 while nothing arrives
+    long getEtaSeconds();
+    long getBytesDownloaded();
+    long getBytesUploaded();
+    // Bytes per second over the last 5 seconds, as of the read
+    long getDownloadRate();
+    long getUploadRate();
+    int getNeighborCount();
+    int getUnchokedNeighborCount();
+    int getOutstandingRequests();
+    LatencyHistogram.Snapshot getRequestLatency();
+}
@@ -0,0 +1,72 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// The part of an unchoke round that looks at every neighbor: ranks the interested ones by rate with TopKSelector
+// and keeps the fastest. Peer runs it without holding chokeLock and then applies the result under the lock;
+// ChokeRoundBenchmark runs it directly. Arrays are kept between rounds. Not thread safe; only the scheduler thread
+// runs rounds
+public class PreferredRanking<N extends PreferredRanking.Candidate> {
+
+    public interface Candidate {
+        boolean isInterestedInUs();
+        RateMeter downloadMeter(); // Piece data the neighbor sends us
+        RateMeter uploadMeter(); // Piece data we send the neighbor
+        int index(); // Numbers candidates from 0, for the preferred bitmap
+    }
+
+    private final TopKSelector selector;
+    private final ArrayList<N> candidates; // Interested neighbors, in the order they were added to the selector
+    private int[] ranked;
+    private int count;
+    private final BitSet preferred; // Indexed by Candidate.index
+
+    public PreferredRanking() {
+        this.selector = new TopKSelector();
+        this.candidates = new ArrayList<N>();
+        this.ranked = new int[0];
+        this.preferred = new BitSet();
+    }
+
+    // Ranks the interested neighbors by their rate at now and keeps the k fastest. While downloading that is how
+    // fast they send to us (tit-for-tat); once seeding there is nothing to receive, so it is how fast they take our
+    // uploads. Neighbors who tie are ordered by their rate over the longer window, then at random.
+    // Returns how many neighbors are interested
+    public int rank(List<N> neighbors, boolean seeding, int k, long now) {
+        RateMeter.Reading at = RateMeter.at(now); // The meters' decay at now, worked out once for all of them
+        candidates.clear();
+        selector.clear();
+        for (N n : neighbors) {
+            if (n.isInterestedInUs()) {
+                RateMeter meter = seeding ? n.uploadMeter() : n.downloadMeter();
+                candidates.add(n);
+                selector.add(meter.rate(at), meter.slowRate(at));
+            }
+        }
+        if (ranked.length < k) {
+            ranked = new int[k];
+        }
+        count = selector.select(k, ranked);
+        preferred.clear();
+        for (int i = 0; i < count; i++) {
+            preferred.set(candidates.get(ranked[i]).index());
+        }
+        return candidates.size();
+    }
+
+    // How many neighbors the last rank kept
+    public int preferredCount() {
+        return count;
+    }
+
+    // The i-th fastest neighbor the last rank kept
+    public N preferred(int i) {
+        return candidates.get(ranked[i]);
+    }
+
+    public boolean isPreferred(N n) {
+        return preferred.get(n.index());
+    }
+}
@@ -0,0 +1,136 @@
+package src;
+
+// Measures a byte rate as exponentially weighted moving averages over two time constants. The averages decay
+// lazily: bytes are summed with a weight that grows with the time they arrived, e^(t / window), so the rate at time
+// now is the sum scaled by e^(-now / window) / window, a factor that is the same for every meter at that instant.
+// Nothing is updated between reads, and a reader that works the factors out once with at() reads each meter with
+// a few loads. Weights are taken from the start of the current era, so they stay within double range; when an era
+// begins the sums are rescaled to it. Any thread may add bytes and read
+public class RateMeter {
+
+    // Time constants of the averages, in seconds. The fast one reacts within a choke round or two, the slow one
+    // remembers who sent over the last few rounds and breaks ties between equal fast rates
+    private static final double FAST_WINDOW = 5;
+    private static final double SLOW_WINDOW = 20;
+
+    // Eras are long enough that bytes two eras old count for nothing even in the slow average (e^-60)
+    private static final long ERA = 600_000_000_000L;
+    private static final long EPOCH = System.nanoTime();
+    private static final double FAST_CARRY = Math.exp(-ERA / 1e9 / FAST_WINDOW); // Rescales a sum to the next era
+    private static final double SLOW_CARRY = Math.exp(-ERA / 1e9 / SLOW_WINDOW);
+
+    // The factors that turn the sums into rates at one instant
+    public static final class Reading {
+        private final long era;
+        private final double fastFactor;
+        private final double slowFactor;
+
+        private Reading(long now) {
+            this.era = eraOf(now);
+            double seconds = (now - eraStart(era)) / 1e9;
+            this.fastFactor = Math.exp(-seconds / FAST_WINDOW) / FAST_WINDOW;
+            this.slowFactor = Math.exp(-seconds / SLOW_WINDOW) / SLOW_WINDOW;
+        }
+    }
+
+    private final RateMeter parent; // Also counts every byte added here, may be null
+    // Written under the meter's lock and read without it. version is odd while an era change rescales the sums,
+    // so a reader can tell when it may have seen the era and a sum from either side of the change
+    private volatile long total;
+    private volatile int version;
+    private volatile long era;
+    private volatile double fastSum; // Bytes weighted by e^(seconds into the era / FAST_WINDOW)
+    private volatile double slowSum;
+
+    public RateMeter() {
+        this(null);
+    }
+
+    public RateMeter(RateMeter parent) {
+        this.parent = parent;
+        this.era = eraOf(System.nanoTime());
+    }
+
+    public static Reading at(long now) {
+        return new Reading(now);
+    }
+
+    private static long eraOf(long now) {
+        return Math.floorDiv(now - EPOCH, ERA);
+    }
+
+    private static long eraStart(long era) {
+        return EPOCH + era * ERA;
+    }
+
+    public void add(long bytes) {
+        add(bytes, System.nanoTime());
+    }
+
+    private void add(long bytes, long now) {
+        long era = eraOf(now);
+        double seconds = (now - eraStart(era)) / 1e9;
+        double fastWeight = Math.exp(seconds / FAST_WINDOW);
+        double slowWeight = Math.exp(seconds / SLOW_WINDOW);
+        synchronized (this) {
+            total += bytes;
+            if (era > this.era) {
+                version++;
+                boolean next = era == this.era + 1;
+                fastSum = next ? fastSum * FAST_CARRY : 0;
+                slowSum = next ? slowSum * SLOW_CARRY : 0;
+                this.era = era;
+                version++;
+            } else if (era < this.era) {
+                // The clock was read just before another thread's add began the next era
+                fastWeight *= FAST_CARRY;
+                slowWeight *= SLOW_CARRY;
+            }
+            fastSum += bytes * fastWeight;
+            slowSum += bytes * slowWeight;
+        }
+        if (parent != null) {
+            parent.add(bytes, now);
+        }
+    }
+
+    private double rate(Reading at, boolean slow) {
+        while (true) {
+            int v = version;
+            if ((v & 1) == 0) {
+                long era = this.era;
+                double sum = slow ? slowSum : fastSum;
+                if (version == v) {
+                    double carry = slow ? SLOW_CARRY : FAST_CARRY;
+                    long back = at.era - era; // Eras from the sum's to the reading's
+                    double scale = back == 0 ? 1 : back == 1 ? carry : back == -1 ? 1 / carry : 0;
+                    return sum * scale * (slow ? at.slowFactor : at.fastFactor);
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    // Bytes per second over the fast window at the reading's instant
+    public long rate(Reading at) {
+        return Math.round(rate(at, false));
+    }
+
+    // Bytes per second over the slow window at the reading's instant
+    public long slowRate(Reading at) {
+        return Math.round(rate(at, true));
+    }
+
+    // Bytes per second over the fast window, now
+    public long rate() {
+        return rate(at(System.nanoTime()));
+    }
+
+    public long slowRate() {
+        return slowRate(at(System.nanoTime()));
+    }
+
+    public long total() {
+        return total;
+    }
+}
@@ -0,0 +1,41 @@
+package src;
+
+// When each outstanding request to one neighbor was sent, so the reply's round trip can be measured. Holds as many
+// entries as requests can be outstanding; when full, the oldest entry is dropped. Guarded by Peer's requestLock
+public class RequestTimes {
+
+    private final int[] blocks;
+    private final long[] sentAt; // 0 marks a free entry
+
+    public RequestTimes(int capacity) {
+        this.blocks = new int[Math.max(1, capacity)];
+        this.sentAt = new long[blocks.length];
+    }
+
+    public void put(int block, long now) {
+        int slot = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            if (sentAt[i] == 0) {
+                slot = i;
+                break;
+            }
+            if (sentAt[i] - sentAt[slot] < 0) {
+                slot = i;
+            }
+        }
+        blocks[slot] = block;
+        sentAt[slot] = now;
+    }
+
+    // Removes the block's entry and returns when it was sent, or 0 if there is none
+    public long take(int block) {
+        for (int i = 0; i < blocks.length; i++) {
+            if (sentAt[i] != 0 && blocks[i] == block) {
+                long time = sentAt[i];
+                sentAt[i] = 0;
+                return time;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,42 @@
+package src;
+
+// Limits one direction of one neighbor's traffic by the neighbor's own token bucket and the one shared by all
+// neighbors. Either may be null when that limit is not set. Since every neighbor takes from the shared bucket
+// after each transfer and waits once it is empty, the neighbors that are sending at the time share it
+public class Throttle {
+
+    // Most bytes handed to one transfer call while limited, so a large piece does not hold the shared bucket
+    // for long and the other neighbors get their turn
+    public static final int QUANTUM = 16 * 1024;
+
+    private final TokenBucket own;
+    private final TokenBucket shared;
+
+    public Throttle(TokenBucket own, TokenBucket shared) {
+        this.own = own;
+        this.shared = shared;
+    }
+
+    public boolean isLimited() {
+        return own != null || shared != null;
+    }
+
+    // Counts bytes that were just sent or received
+    public void consume(long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        if (own != null) {
+            own.consume(bytes);
+        }
+        if (shared != null) {
+            shared.consume(bytes);
+        }
+    }
+
+    // Nanoseconds to wait before the next transfer, 0 if it may go ahead now
+    public long delayNanos() {
+        long delay = own != null ? own.delayNanos() : 0;
+        return shared != null ? Math.max(delay, shared.delayNanos()) : delay;
+    }
+}
@@ -0,0 +1,36 @@
+package src;
+
+// Refills at a fixed rate up to a burst size. Bytes are taken after they were sent or received, which may take
+// the bucket below zero; the next transfer then waits until it is positive again. That keeps the long-run rate
+// exact however large a single write or read turns out, without splitting it up front
+public class TokenBucket {
+
+    private final double bytesPerNano;
+    private final long burst;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(long bytesPerSecond, long burst) {
+        this.bytesPerNano = bytesPerSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized void consume(long bytes) {
+        refill();
+        tokens -= bytes;
+    }
+
+    // Nanoseconds until the bucket is positive again, 0 if it is now
+    public synchronized long delayNanos() {
+        refill();
+        return tokens > 0 ? 0 : (long) Math.ceil((1 - tokens) / bytesPerNano);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * bytesPerNano);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,110 @@
+package src;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+// Picks the candidates with the k highest scores without sorting all of them: a min-heap holds the best k seen
+// so far, so a round over n candidates costs O(n log k). Equal scores are ordered by a second score given with
+// them, then by a random rank drawn when the candidate is added, so remaining ties are broken randomly. Arrays are
+// kept between rounds. Not thread safe
+public class TopKSelector {
+
+    private long[] scores;
+    private long[] tieBreaks;
+    private int[] ranks;
+    private int[] heap; // Candidate numbers, worst of the kept ones at the root
+    private int count;
+    private final SplittableRandom random;
+
+    public TopKSelector() {
+        this.scores = new long[16];
+        this.tieBreaks = new long[16];
+        this.ranks = new int[16];
+        this.heap = new int[16];
+        this.random = new SplittableRandom();
+    }
+
+    public void clear() {
+        count = 0;
+    }
+
+    // Adds a candidate and returns its number; candidates are numbered from 0 in the order they are added
+    public int add(long score, long tieBreak) {
+        if (count == scores.length) {
+            scores = Arrays.copyOf(scores, count * 2);
+            tieBreaks = Arrays.copyOf(tieBreaks, count * 2);
+            ranks = Arrays.copyOf(ranks, count * 2);
+        }
+        scores[count] = score;
+        tieBreaks[count] = tieBreak;
+        ranks[count] = random.nextInt();
+        return count++;
+    }
+
+    // Writes the numbers of the best k candidates to result, best first, and returns how many were written
+    public int select(int k, int[] result) {
+        k = Math.min(k, count);
+        if (k <= 0) {
+            return 0;
+        }
+        if (heap.length < k) {
+            heap = new int[Math.max(k, heap.length * 2)];
+        }
+        int size = 0;
+        for (int c = 0; c < count; c++) {
+            if (size < k) {
+                heap[size] = c;
+                siftUp(size++);
+            } else if (better(c, heap[0])) {
+                heap[0] = c;
+                siftDown(0, size);
+            }
+        }
+        // Taking the worst off the root each time fills the result from the back
+        for (int i = size - 1; i >= 0; i--) {
+            result[i] = heap[0];
+            heap[0] = heap[i];
+            siftDown(0, i);
+        }
+        return size;
+    }
+
+    private boolean better(int a, int b) {
+        if (scores[a] != scores[b]) {
+            return scores[a] > scores[b];
+        }
+        return tieBreaks[a] != tieBreaks[b] ? tieBreaks[a] > tieBreaks[b] : ranks[a] > ranks[b];
+    }
+
+    private void siftUp(int i) {
+        int c = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!better(heap[parent], c)) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = c;
+    }
+
+    private void siftDown(int i, int size) {
+        int c = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && better(heap[child], heap[child + 1])) {
+                child++;
+            }
+            if (!better(c, heap[child])) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = c;
+    }
+}
@@ -1,18 +1,13 @@
 package src;
 
+import java.lang.management.ManagementFactory;
 import java.util.BitSet;
+import java.util.concurrent.ThreadFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class Util {
 
-    static public int fourBytesToInt(byte[] bytes) {
-        int sum = 0;
-        for (byte b: bytes) {
-
-            sum = (sum << 8) + (b&0xff);
-        }
-        return sum;
-    }
-
     static public byte[] intToFourBytes(int num) {
         return new byte[]{
                 (byte) (num >> 24),
@@ -21,4 +16,24 @@ public class Util {
                 (byte) num
         };
     }
+
+    // Makes the bean readable with jconsole. Metrics are not worth failing over, so errors are only printed
+    static public void registerMBean(Object bean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(name));
+        } catch (JMException e) {
+            System.out.println("Could not register " + name + ": " + e);
+        }
+    }
+
+    // Thread.ofVirtual().factory(), looked up reflectively so the sources still build on JDKs without virtual threads.
+    // Returns null when the runtime does not support them
+    static public ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
 }